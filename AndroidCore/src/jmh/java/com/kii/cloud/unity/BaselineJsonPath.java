@@ -0,0 +1,77 @@
+package com.kii.cloud.unity;
+
+import org.json.JSONObject;
+
+/**
+ * Copy of the JSONPath implementation which the push plugin used before JsonPath was compiled,
+ * kept as the baseline of {@link JsonPathBenchmark}.
+ * Only TextUtils.isEmpty is replaced, so that this runs without Android.
+ */
+class BaselineJsonPath {
+	/**
+	 * Executes a JsonPATH query that returns a string as the result.
+	 * 
+	 * @param json
+	 * @param query
+	 * @return
+	 */
+	static String query(JSONObject json, String query) {
+		String[] fields = query.replace("$.", "").split("\\.");
+		try {
+			String value = null;
+			for (String field : fields) {
+				Object o = json.get(field);
+				if (o instanceof JSONObject) {
+					json = (JSONObject)o;
+				} else {
+					json = null;
+					value = o.toString();
+				}
+			}
+			return value;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	/**
+	 * Check the if a query is a JSONPath.
+	 * 
+	 * @param query
+	 * @return
+	 */
+	static boolean isJsonQuery(String query) {
+		if (query == null || query.length() == 0) {
+			return false;
+		}
+		if (query.startsWith("$.") && query.lastIndexOf("$.") == 0) {
+			return true;
+		}
+		return false;
+	}
+	/**
+	 * AbstractGcmIntentService#getText before the notification texts were resolved by NotificationFormat.
+	 * 
+	 * @param json
+	 * @param text literal or JSONPath
+	 * @param fallback
+	 * @return
+	 */
+	static String getText(JSONObject json, String text, String fallback) {
+		try {
+			if (text == null || text.length() == 0) {
+				return fallback;
+			} else if (isJsonQuery(text)) {
+				String value = query(json, text);
+				if (value == null) {
+					return fallback;
+				} else {
+					return value;
+				}
+			} else {
+				return text;
+			}
+		} catch (Exception ignore) {
+			return fallback;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.kii.cloud.unity;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of inflating the compressed payload of push messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressedPayloadBenchmark {
+
+	/**
+	 * Number of the entries of the game state in the payload.
+	 */
+	@Param({"10", "500"})
+	public int entries;
+
+	private String payload;
+
+	@Setup
+	public void setUp() throws Exception {
+		JSONObject state = new JSONObject();
+		for (int i = 0; i < this.entries; i++) {
+			state.put("player" + i, new JSONObject().put("score", i * 100).put("rank", i + 1).put("name", "Player " + i));
+		}
+		this.payload = CompressedPayload.deflate(new JSONObject().put("state", state).toString());
+	}
+	@Benchmark
+	public String inflate() throws Exception {
+		return CompressedPayload.inflate(this.payload, CompressedPayload.DEFAULT_MAX_INFLATED_BYTES);
+	}
+	/**
+	 * Inflates the payload and merges it into the message, which is what the push plugin does for each compressed message.
+	 */
+	@Benchmark
+	public JSONObject merge() throws Exception {
+		return CompressedPayload.merge(PushPayload.toJson(MapFields.directPush()), this.payload, CompressedPayload.DEFAULT_MAX_INFLATED_BYTES);
+	}
+}
@@ -0,0 +1,100 @@
+package com.kii.cloud.unity;
+
+import java.io.InputStream;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of evaluating the JSONPath of the notification texts against the recorded payloads
+ * (UnityPlugins/AndroidPushPlugin/app/src/test/resources/payloads).
+ * query, isJsonQuery and getText are what the push plugin does,
+ * the baseline versions are what it did before JsonPath was compiled, see {@link BaselineJsonPath}.
+ * $.data.message is missing in all the payloads, so the fallback is returned.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JsonPathBenchmark {
+
+	@Param({"direct_push.json", "push_to_user.json", "push_to_app.json"})
+	public String payload;
+
+	@Param({"$.message", "$.sender", "$.data.message"})
+	public String query;
+
+	private JSONObject json;
+	private JsonPath path;
+	private NotificationTemplate template;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.json = loadPayload(this.payload);
+		this.path = JsonPath.compile(this.query);
+		this.template = NotificationTemplate.compile("{" + this.query + ":16|nothing} from {$.from}");
+	}
+	/**
+	 * JsonPath.query, which looks up the compiled query in the cache.
+	 */
+	@Benchmark
+	public String query() {
+		return JsonPath.query(this.json, this.query);
+	}
+	@Benchmark
+	public String baselineQuery() {
+		return BaselineJsonPath.query(this.json, this.query);
+	}
+	/**
+	 * Evaluates the compiled query.
+	 */
+	@Benchmark
+	public String evaluate() {
+		return this.path.evaluate(this.json);
+	}
+	@Benchmark
+	public boolean isJsonQuery() {
+		return JsonPath.isJsonQuery(this.query);
+	}
+	@Benchmark
+	public boolean baselineIsJsonQuery() {
+		return BaselineJsonPath.isJsonQuery(this.query);
+	}
+	/**
+	 * Resolves a notification text, which is what the push plugin does for each message.
+	 */
+	@Benchmark
+	public String getText() {
+		return NotificationFormat.getText(this.json, this.query, "");
+	}
+	@Benchmark
+	public String baselineGetText() {
+		return BaselineJsonPath.getText(this.json, this.query, "");
+	}
+	/**
+	 * Renders the precompiled template which has two placeholders.
+	 */
+	@Benchmark
+	public String renderTemplate() {
+		return this.template.render(this.json, "");
+	}
+	private static JSONObject loadPayload(String name) throws Exception {
+		InputStream in = JsonPathBenchmark.class.getResourceAsStream("/payloads/" + name);
+		if (in == null) {
+			throw new IllegalStateException("payload not found: " + name);
+		}
+		try {
+			return new JSONObject(new Scanner(in, "UTF-8").useDelimiter("\\A").next());
+		} finally {
+			in.close();
+		}
+	}
+}
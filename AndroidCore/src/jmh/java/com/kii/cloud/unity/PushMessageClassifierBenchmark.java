@@ -0,0 +1,57 @@
+package com.kii.cloud.unity;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of classifying received push messages.
+ * classifyFields is what the push plugin does, classifyAfterConversion is what it did before the messages were classified without JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PushMessageClassifierBenchmark {
+
+	@Param({"DIRECT_PUSH", "PUSH_TO_USER", "PUSH_TO_APP"})
+	public String kind;
+
+	private MessageFields message;
+	private JSONObject json;
+
+	@Setup
+	public void setUp() {
+		switch (PushMessageClassifier.Kind.valueOf(this.kind)) {
+			case PUSH_TO_APP:
+				this.message = MapFields.pushToApp();
+				break;
+			case PUSH_TO_USER:
+				this.message = MapFields.pushToUser();
+				break;
+			default:
+				this.message = MapFields.directPush();
+				break;
+		}
+		this.json = PushPayload.toJson(this.message);
+	}
+	@Benchmark
+	public PushMessageClassifier.Kind classifyFields() {
+		return PushMessageClassifier.classify(this.message);
+	}
+	@Benchmark
+	public PushMessageClassifier.Kind classifyJson() {
+		return PushMessageClassifier.classify(this.json);
+	}
+	@Benchmark
+	public PushMessageClassifier.Kind classifyAfterConversion() {
+		return PushMessageClassifier.classify(PushPayload.toJson(this.message));
+	}
+}
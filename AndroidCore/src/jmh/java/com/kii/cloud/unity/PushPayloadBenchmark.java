@@ -0,0 +1,42 @@
+package com.kii.cloud.unity;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of converting received push messages to JSON and serializing them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PushPayloadBenchmark {
+
+	private MessageFields message;
+	private JSONObject json;
+
+	@Setup
+	public void setUp() {
+		this.message = MapFields.pushToApp();
+		this.json = PushPayload.toJson(this.message);
+	}
+	@Benchmark
+	public JSONObject toJson() {
+		return PushPayload.toJson(this.message);
+	}
+	@Benchmark
+	public String serialize() {
+		return this.json.toString();
+	}
+	@Benchmark
+	public String toJsonAndSerialize() {
+		return PushPayload.toJson(this.message).toString();
+	}
+}
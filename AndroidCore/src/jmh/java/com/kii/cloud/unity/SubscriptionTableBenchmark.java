@@ -0,0 +1,60 @@
+package com.kii.cloud.unity;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of routing received push messages to the subscribers.
+ * The table has the specified number of topic subscriptions, and a few bucket and message type subscriptions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SubscriptionTableBenchmark {
+
+	@Param({"10", "1000"})
+	public int subscriptions;
+
+	private SubscriptionTable table;
+	private MessageFields pushToUser;
+	private MessageFields pushToApp;
+	private MessageFields unsubscribed;
+
+	@Setup
+	public void setUp() {
+		this.table = new SubscriptionTable();
+		for (int i = 0; i < this.subscriptions; i++) {
+			this.table.subscribe(SubscriptionTable.Field.TOPIC, "topic_" + i, new SubscriptionTable.Target("System" + (i % 16), "OnTopic"));
+		}
+		this.table.subscribe(SubscriptionTable.Field.TOPIC, "news*", new SubscriptionTable.Target("News", "OnNews"));
+		this.table.subscribe(SubscriptionTable.Field.BUCKET, "scores", new SubscriptionTable.Target("Leaderboard", "OnScore"));
+		this.table.subscribe(SubscriptionTable.Field.MESSAGE_TYPE, "DIRECT_PUSH", new SubscriptionTable.Target("Inbox", "OnDirectPush"));
+		this.pushToUser = MapFields.pushToUser();
+		this.pushToApp = MapFields.pushToApp();
+		this.unsubscribed = MapFields.pushToUser().put("topic", "unknown");
+	}
+	@Benchmark
+	public Set<SubscriptionTable.Target> matchTopicPrefix() {
+		return this.table.match("PUSH_TO_USER", this.pushToUser);
+	}
+	@Benchmark
+	public Set<SubscriptionTable.Target> matchBucket() {
+		return this.table.match("PUSH_TO_APP", this.pushToApp);
+	}
+	/**
+	 * The message which nobody subscribes, which is not sent to the Unity layer.
+	 */
+	@Benchmark
+	public Set<SubscriptionTable.Target> matchNone() {
+		return this.table.match("PUSH_TO_USER", this.unsubscribed);
+	}
+}
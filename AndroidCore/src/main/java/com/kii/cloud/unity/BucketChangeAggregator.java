@@ -0,0 +1,195 @@
+package com.kii.cloud.unity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Aggregates 'Push to App' messages into a change set per bucket.
+ * A change set has the distinct object IDs, the max modifiedAt and the number of the messages per type of the event,
+ * so the application can resync the bucket once for many changes.
+ * This class doesn't have a timer, the owner drains the change sets at the end of the window.
+ * This class is thread safe.
+ */
+public class BucketChangeAggregator {
+
+	/**
+	 * Fields which identify the scope of the bucket, they are copied to the change set as they are.
+	 */
+	private static final String[] SCOPE_FIELDS = {"bucketType", "bucketID", "objectScopeType", "objectScopeAppID", "objectScopeGroupID", "objectScopeUserID", "objectScopeThingID"};
+
+	/**
+	 * Changes of a bucket.
+	 * The fields of the change set are the scope fields of the bucket, so it can be matched with the subscriptions
+	 * in the same way as 'Push to App' messages, see {@link SubscriptionTable#match(String, MessageFields)}.
+	 */
+	public static class ChangeSet implements MessageFields {
+		private final String[] scope = new String[SCOPE_FIELDS.length];
+		private final Set<String> objectIDs = new LinkedHashSet<String>();
+		private final Map<String, Integer> typeCounts = new LinkedHashMap<String, Integer>();
+		private long maxModifiedAt = 0;
+		private int count = 0;
+		private boolean truncated = false;
+
+		private ChangeSet(MessageFields message) {
+			for (int i = 0; i < SCOPE_FIELDS.length; i++) {
+				Object value = message.get(SCOPE_FIELDS[i]);
+				this.scope[i] = value == null ? null : value.toString();
+			}
+		}
+		private void add(MessageFields message, int maxObjectIDs) {
+			this.count++;
+			Object objectID = message.get("objectID");
+			if (objectID != null && !this.objectIDs.contains(objectID.toString())) {
+				if (this.objectIDs.size() < maxObjectIDs) {
+					this.objectIDs.add(objectID.toString());
+				} else {
+					this.truncated = true;
+				}
+			}
+			Object modifiedAt = message.get("modifiedAt");
+			if (modifiedAt != null) {
+				try {
+					this.maxModifiedAt = Math.max(this.maxModifiedAt, Long.parseLong(modifiedAt.toString()));
+				} catch (NumberFormatException ignore) {
+				}
+			}
+			Object type = message.get("type");
+			String key = type == null ? "UNKNOWN" : type.toString();
+			Integer typeCount = this.typeCounts.get(key);
+			this.typeCounts.put(key, typeCount == null ? 1 : typeCount + 1);
+		}
+		@Override
+		public boolean has(String key) {
+			return this.get(key) != null;
+		}
+		@Override
+		public Object get(String key) {
+			for (int i = 0; i < SCOPE_FIELDS.length; i++) {
+				if (SCOPE_FIELDS[i].equals(key)) {
+					return this.scope[i];
+				}
+			}
+			return null;
+		}
+		@Override
+		public Set<String> keySet() {
+			Set<String> keys = new LinkedHashSet<String>();
+			for (int i = 0; i < SCOPE_FIELDS.length; i++) {
+				if (this.scope[i] != null) {
+					keys.add(SCOPE_FIELDS[i]);
+				}
+			}
+			return keys;
+		}
+		/**
+		 * Gets the number of the aggregated messages.
+		 *
+		 * @return
+		 */
+		public int getCount() {
+			return this.count;
+		}
+		/**
+		 * Gets the distinct object IDs in the received order.
+		 *
+		 * @return
+		 */
+		public Set<String> getObjectIDs() {
+			return this.objectIDs;
+		}
+		/**
+		 * Converts the change set to JSON.
+		 * The JSON has the scope fields of the bucket (bucketType, bucketID, objectScopeType, ...) as well as 'Push to App' messages,
+		 * and objectIDs, truncated (true if some object IDs are omitted), maxModifiedAt, count and typeCounts (the number of the messages per type).
+		 *
+		 * @return
+		 */
+		public JSONObject toJson() {
+			JSONObject json = new JSONObject();
+			try {
+				for (int i = 0; i < SCOPE_FIELDS.length; i++) {
+					if (this.scope[i] != null) {
+						json.put(SCOPE_FIELDS[i], this.scope[i]);
+					}
+				}
+				JSONArray objectIDs = new JSONArray();
+				for (String objectID : this.objectIDs) {
+					objectIDs.put(objectID);
+				}
+				json.put("objectIDs", objectIDs);
+				json.put("truncated", this.truncated);
+				json.put("maxModifiedAt", this.maxModifiedAt);
+				json.put("count", this.count);
+				JSONObject typeCounts = new JSONObject();
+				for (Map.Entry<String, Integer> entry : this.typeCounts.entrySet()) {
+					typeCounts.put(entry.getKey(), entry.getValue().intValue());
+				}
+				json.put("typeCounts", typeCounts);
+			} catch (JSONException ignore) {
+			}
+			return json;
+		}
+	}
+
+	private final int maxObjectIDs;
+	private Map<String, ChangeSet> changeSets = new LinkedHashMap<String, ChangeSet>();
+	private int messageCount = 0;
+
+	/**
+	 * @param maxObjectIDs the maximum number of the object IDs in a change set, the others are counted but omitted.
+	 */
+	public BucketChangeAggregator(int maxObjectIDs) {
+		this.maxObjectIDs = Math.max(0, maxObjectIDs);
+	}
+	/**
+	 * Adds the 'Push to App' message to the change set of its bucket.
+	 *
+	 * @param message
+	 * @return true if this is the first message since the last drain, the owner should start the window in this case.
+	 */
+	public synchronized boolean add(MessageFields message) {
+		String key = getKey(message);
+		ChangeSet changeSet = this.changeSets.get(key);
+		if (changeSet == null) {
+			changeSet = new ChangeSet(message);
+			this.changeSets.put(key, changeSet);
+		}
+		changeSet.add(message, this.maxObjectIDs);
+		return ++this.messageCount == 1;
+	}
+	/**
+	 * Gets the number of the messages which are aggregated since the last drain.
+	 *
+	 * @return
+	 */
+	public synchronized int getMessageCount() {
+		return this.messageCount;
+	}
+	/**
+	 * Takes the change sets which are aggregated since the last drain.
+	 *
+	 * @return the change sets in the order of the first message of each bucket.
+	 */
+	public synchronized List<ChangeSet> drain() {
+		List<ChangeSet> changeSets = new ArrayList<ChangeSet>(this.changeSets.values());
+		this.changeSets = new LinkedHashMap<String, ChangeSet>();
+		this.messageCount = 0;
+		return changeSets;
+	}
+	private static String getKey(MessageFields message) {
+		StringBuilder key = new StringBuilder();
+		for (String field : SCOPE_FIELDS) {
+			Object value = message.get(field);
+			key.append(value == null ? "" : value.toString()).append('/');
+		}
+		return key.toString();
+	}
+}
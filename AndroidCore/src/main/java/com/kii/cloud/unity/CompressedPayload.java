@@ -0,0 +1,248 @@
+package com.kii.cloud.unity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compressed payload of push messages.
+ * A message can carry its fields as a JSON object which is compressed by gzip or deflate (zlib) and encoded by base64
+ * in the field {@link #FIELD}, so that a message can carry more data than the payload limit of GCM.
+ * The payload is decoded and inflated as a stream, and the inflated size is limited to protect the device from compression bombs.
+ * The same encoding is used to store large messages.
+ */
+public class CompressedPayload {
+
+	/**
+	 * Name of the field which has the compressed payload.
+	 */
+	public static final String FIELD = "kii_z";
+	/**
+	 * Default limit of the inflated size of the payload in bytes.
+	 */
+	public static final int DEFAULT_MAX_INFLATED_BYTES = 256 * 1024;
+
+	/**
+	 * Prefix of the stored value which is compressed.
+	 */
+	private static final String STORED_PREFIX = FIELD + ":";
+	/**
+	 * The stored values shorter than this are not compressed because the compression doesn't pay.
+	 */
+	private static final int MIN_STORED_LENGTH_TO_COMPRESS = 256;
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private CompressedPayload() {
+	}
+	/**
+	 * Inflates the compressed payload and merges its fields into the JSON.
+	 * The fields of the payload overwrite the fields of the JSON which have the same names.
+	 *
+	 * @param json
+	 * @param payload value of {@link #FIELD}.
+	 * @param maxInflatedBytes
+	 * @return json
+	 * @throws IOException if the payload is broken or larger than maxInflatedBytes.
+	 * @throws JSONException if the payload is not a JSON object.
+	 */
+	public static JSONObject merge(JSONObject json, String payload, int maxInflatedBytes) throws IOException, JSONException {
+		JSONObject fields = new JSONObject(inflate(payload, maxInflatedBytes));
+		Iterator<?> keys = fields.keys();
+		while (keys.hasNext()) {
+			String key = (String)keys.next();
+			json.put(key, fields.get(key));
+		}
+		return json;
+	}
+	/**
+	 * Decodes and inflates the payload.
+	 * gzip is detected by its magic number, otherwise the payload is inflated as deflate (zlib).
+	 *
+	 * @param payload base64 encoded gzip or deflate data.
+	 * @param maxInflatedBytes
+	 * @return the inflated payload as UTF-8 string.
+	 * @throws IOException if the payload is broken or larger than maxInflatedBytes.
+	 */
+	public static String inflate(String payload, int maxInflatedBytes) throws IOException {
+		PushbackInputStream compressed = new PushbackInputStream(new Base64InputStream(payload), 2);
+		int b0 = compressed.read();
+		int b1 = compressed.read();
+		if (b1 >= 0) {
+			compressed.unread(b1);
+		}
+		if (b0 >= 0) {
+			compressed.unread(b0);
+		}
+		InputStream inflated = b0 == 0x1f && b1 == 0x8b ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed);
+		Reader reader = new InputStreamReader(new LimitedInputStream(inflated, maxInflatedBytes), "UTF-8");
+		try {
+			StringBuilder text = new StringBuilder(Math.min(maxInflatedBytes, payload.length() * 4));
+			char[] buffer = new char[1024];
+			int length;
+			while ((length = reader.read(buffer)) > 0) {
+				text.append(buffer, 0, length);
+			}
+			return text.toString();
+		} finally {
+			reader.close();
+		}
+	}
+	/**
+	 * Deflates and encodes the text.
+	 *
+	 * @param text
+	 * @return base64 encoded deflate (zlib) data, which can be inflated by {@link #inflate(String, int)}.
+	 */
+	public static String deflate(String text) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() / 2 + 16);
+			DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+			out.write(text.getBytes("UTF-8"));
+			out.close();
+			return encodeBase64(bytes.toByteArray());
+		} catch (IOException e) {
+			// ByteArrayOutputStream doesn't throw IOException.
+			throw new RuntimeException(e);
+		}
+	}
+	/**
+	 * Converts the text to the value to be stored.
+	 * The text is compressed only when it gets shorter.
+	 *
+	 * @param text
+	 * @return
+	 */
+	public static String toStoredValue(String text) {
+		if (text == null || text.length() < MIN_STORED_LENGTH_TO_COMPRESS) {
+			return text;
+		}
+		String compressed = STORED_PREFIX + deflate(text);
+		return compressed.length() < text.length() ? compressed : text;
+	}
+	/**
+	 * Restores the text from the value which is made by {@link #toStoredValue(String)}.
+	 * The value which is not compressed, e.g. stored by the older version, is returned as it is.
+	 *
+	 * @param value
+	 * @return null if the value is broken.
+	 */
+	public static String fromStoredValue(String value) {
+		if (value == null || !value.startsWith(STORED_PREFIX)) {
+			return value;
+		}
+		try {
+			return inflate(value.substring(STORED_PREFIX.length()), Integer.MAX_VALUE);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	private static String encodeBase64(byte[] data) {
+		StringBuilder text = new StringBuilder((data.length + 2) / 3 * 4);
+		for (int i = 0; i < data.length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+			if (i + 1 < data.length) {
+				b |= (data[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < data.length) {
+				b |= data[i + 2] & 0xff;
+			}
+			text.append(BASE64[(b >> 18) & 0x3f]).append(BASE64[(b >> 12) & 0x3f]);
+			text.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3f] : '=');
+			text.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Decodes base64 (standard or URL safe) on the fly, so the decoded bytes are not held as a whole.
+	 * Whitespaces and padding are skipped.
+	 */
+	private static class Base64InputStream extends InputStream {
+		private final String text;
+		private int pos = 0;
+		private int bits = 0;
+		private int bitCount = 0;
+
+		Base64InputStream(String text) {
+			this.text = text;
+		}
+		@Override
+		public int read() throws IOException {
+			while (this.bitCount < 8) {
+				if (this.pos >= this.text.length()) {
+					return -1;
+				}
+				char c = this.text.charAt(this.pos++);
+				int value;
+				if (c >= 'A' && c <= 'Z') {
+					value = c - 'A';
+				} else if (c >= 'a' && c <= 'z') {
+					value = c - 'a' + 26;
+				} else if (c >= '0' && c <= '9') {
+					value = c - '0' + 52;
+				} else if (c == '+' || c == '-') {
+					value = 62;
+				} else if (c == '/' || c == '_') {
+					value = 63;
+				} else if (c == '=' || Character.isWhitespace(c)) {
+					continue;
+				} else {
+					throw new IOException("Invalid base64 character '" + c + "' at " + (this.pos - 1));
+				}
+				this.bits = (this.bits << 6) | value;
+				this.bitCount += 6;
+			}
+			this.bitCount -= 8;
+			return (this.bits >> this.bitCount) & 0xff;
+		}
+	}
+	/**
+	 * Fails when more than the limit is read.
+	 */
+	private static class LimitedInputStream extends InputStream {
+		private final InputStream in;
+		private final int limit;
+		private long count = 0;
+
+		LimitedInputStream(InputStream in, int limit) {
+			this.in = in;
+			this.limit = limit;
+		}
+		@Override
+		public int read() throws IOException {
+			int b = this.in.read();
+			if (b >= 0) {
+				this.count(1);
+			}
+			return b;
+		}
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = this.in.read(buffer, offset, length);
+			if (read > 0) {
+				this.count(read);
+			}
+			return read;
+		}
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+		private void count(int read) throws IOException {
+			this.count += read;
+			if (this.count > this.limit) {
+				throw new IOException("Inflated payload exceeds " + this.limit + " bytes");
+			}
+		}
+	}
+}
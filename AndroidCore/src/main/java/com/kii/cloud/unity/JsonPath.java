@@ -0,0 +1,224 @@
+package com.kii.cloud.unity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Utility class for JSONPath.
+ * This class supports simple JSONPath only.
+ * Supported notations are dot-notation ($.a.b), bracket-notation ($['a']['b']) and array indexes ($.a[0]).
+ * A query is compiled once into a JsonPath and compiled queries are cached, so evaluating the same query again does not parse it.
+ * 
+ * @author noriyoshi.fukuzaki@kii.com
+ */
+public class JsonPath {
+
+	private static final int MAX_CACHE_SIZE = 64;
+	private static final Map<String, JsonPath> CACHE = new LinkedHashMap<String, JsonPath>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, JsonPath> eldest) {
+			return this.size() > MAX_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Executes a JsonPATH query that returns a string as the result.
+	 * 
+	 * @param json
+	 * @param query
+	 * @return
+	 */
+	public static String query(JSONObject json, String query) {
+		try {
+			return compile(query).evaluate(json);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	/**
+	 * Compiles a JSONPath query into a reusable JsonPath.
+	 * The result is cached, calling this again with the same query returns the same instance.
+	 * 
+	 * @param query
+	 * @return
+	 * @throws IllegalArgumentException if query is not a supported JSONPath.
+	 */
+	public static JsonPath compile(String query) {
+		synchronized (CACHE) {
+			JsonPath path = CACHE.get(query);
+			if (path != null) {
+				return path;
+			}
+		}
+		JsonPath path = new JsonPath(query);
+		synchronized (CACHE) {
+			CACHE.put(query, path);
+		}
+		return path;
+	}
+	/**
+	 * Check the if a query is a JSONPath.
+	 * 
+	 * @param query
+	 * @return
+	 */
+	public static boolean isJsonQuery(String query) {
+		if (query == null || query.length() == 0) {
+			return false;
+		}
+		if ((query.startsWith("$.") || query.startsWith("$[")) && query.lastIndexOf("$.") <= 0) {
+			return true;
+		}
+		return false;
+	}
+
+	private final String query;
+	/**
+	 * Field name of each step, null if the step is an array index.
+	 */
+	private final String[] names;
+	/**
+	 * Array index of each step, -1 if the step is a field name.
+	 */
+	private final int[] indexes;
+
+	private JsonPath(String query) {
+		if (query == null || !query.startsWith("$")) {
+			throw new IllegalArgumentException("JSONPath must start with '$' query=" + query);
+		}
+		this.query = query;
+		List<Object> steps = new ArrayList<Object>();
+		int length = query.length();
+		int pos = 1;
+		while (pos < length) {
+			char c = query.charAt(pos);
+			if (c == '.') {
+				int start = pos + 1;
+				int end = start;
+				while (end < length && query.charAt(end) != '.' && query.charAt(end) != '[') {
+					end++;
+				}
+				if (end == start) {
+					throw new IllegalArgumentException("Empty field name at " + start + " query=" + query);
+				}
+				steps.add(query.substring(start, end));
+				pos = end;
+			} else if (c == '[') {
+				int close = query.indexOf(']', pos);
+				if (close < 0) {
+					throw new IllegalArgumentException("Unclosed '[' at " + pos + " query=" + query);
+				}
+				String token = query.substring(pos + 1, close).trim();
+				if (token.length() >= 2 && (token.charAt(0) == '\'' || token.charAt(0) == '"') && token.charAt(token.length() - 1) == token.charAt(0)) {
+					steps.add(token.substring(1, token.length() - 1));
+				} else {
+					try {
+						int index = Integer.parseInt(token);
+						if (index < 0) {
+							throw new IllegalArgumentException("Negative index at " + pos + " query=" + query);
+						}
+						steps.add(index);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid index '" + token + "' at " + pos + " query=" + query);
+					}
+				}
+				pos = close + 1;
+			} else {
+				throw new IllegalArgumentException("Unexpected '" + c + "' at " + pos + " query=" + query);
+			}
+		}
+		this.names = new String[steps.size()];
+		this.indexes = new int[steps.size()];
+		for (int i = 0; i < steps.size(); i++) {
+			Object step = steps.get(i);
+			if (step instanceof Integer) {
+				this.indexes[i] = (Integer)step;
+			} else {
+				this.names[i] = (String)step;
+				this.indexes[i] = -1;
+			}
+		}
+	}
+	/**
+	 * Gets the query which this JsonPath was compiled from.
+	 * 
+	 * @return
+	 */
+	public String getQuery() {
+		return this.query;
+	}
+	/**
+	 * Evaluates this JsonPath against the specified JSON and returns a string as the result.
+	 * 
+	 * @param json
+	 * @return Returns null if the path is not found or the result is a JSONObject.
+	 */
+	public String evaluate(JSONObject json) {
+		Object value = this.find(json);
+		if (value == null || value == JSONObject.NULL || value instanceof JSONObject) {
+			return null;
+		}
+		return value.toString();
+	}
+	/**
+	 * Evaluates this JsonPath against the specified JSON and returns the raw value.
+	 * 
+	 * @param json
+	 * @return Returns null if the path is not found.
+	 */
+	public Object find(JSONObject json) {
+		return this.find(json, 0);
+	}
+	/**
+	 * Evaluates this JsonPath against the fields of the message and returns a string as the result.
+	 * The first step is read from the fields directly, so the message doesn't need to be converted to JSON.
+	 * 
+	 * @param fields
+	 * @return Returns null if the path is not found or the result is a JSONObject.
+	 */
+	public String evaluate(MessageFields fields) {
+		Object value = this.find(fields);
+		if (value == null || value == JSONObject.NULL || value instanceof JSONObject) {
+			return null;
+		}
+		return value.toString();
+	}
+	/**
+	 * Evaluates this JsonPath against the fields of the message and returns the raw value.
+	 * 
+	 * @param fields
+	 * @return Returns null if the path is not found.
+	 */
+	public Object find(MessageFields fields) {
+		if (fields == null || this.indexes.length == 0 || this.indexes[0] >= 0) {
+			return null;
+		}
+		return this.find(fields.get(this.names[0]), 1);
+	}
+	private Object find(Object root, int from) {
+		Object current = root;
+		for (int i = from; i < this.indexes.length; i++) {
+			if (current == null) {
+				return null;
+			}
+			if (this.indexes[i] < 0) {
+				if (!(current instanceof JSONObject)) {
+					return null;
+				}
+				current = ((JSONObject)current).opt(this.names[i]);
+			} else {
+				if (!(current instanceof JSONArray)) {
+					return null;
+				}
+				current = ((JSONArray)current).opt(this.indexes[i]);
+			}
+		}
+		return current;
+	}
+}
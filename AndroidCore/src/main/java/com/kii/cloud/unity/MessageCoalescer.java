@@ -0,0 +1,54 @@
+package com.kii.cloud.unity;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collapses the waiting messages which have the same key to the newest one.
+ * A message gets a ticket by {@link #offer(String)} when it is queued, and checks the ticket by {@link #take(String, long)} when it is dequeued.
+ * The message is obsolete if a newer message with the same key has been queued since then.
+ * This class is thread safe.
+ */
+public class MessageCoalescer {
+
+	/**
+	 * The newest ticket of each key. A key is in this map while a message with the key is waiting.
+	 */
+	private final Map<String, Long> newestTickets = new HashMap<String, Long>();
+	private long lastTicket = 0;
+
+	/**
+	 * Registers the message which is queued.
+	 *
+	 * @param key
+	 * @return the ticket of the message.
+	 */
+	public synchronized long offer(String key) {
+		long ticket = ++this.lastTicket;
+		this.newestTickets.put(key, ticket);
+		return ticket;
+	}
+	/**
+	 * Checks the message which is dequeued.
+	 *
+	 * @param key
+	 * @param ticket the value which is returned by {@link #offer(String)}.
+	 * @return false if a newer message with the same key is waiting, the message should be dropped in this case.
+	 */
+	public synchronized boolean take(String key, long ticket) {
+		Long newest = this.newestTickets.get(key);
+		if (newest != null && newest > ticket) {
+			return false;
+		}
+		this.newestTickets.remove(key);
+		return true;
+	}
+	/**
+	 * Gets the number of the keys which have waiting messages.
+	 *
+	 * @return
+	 */
+	public synchronized int getWaitingKeyCount() {
+		return this.newestTickets.size();
+	}
+}
@@ -0,0 +1,31 @@
+package com.kii.cloud.unity;
+
+import java.util.Set;
+
+/**
+ * Read-only view of the fields of a received push message.
+ * On Android the fields are backed by the Bundle which is received from GCM,
+ * so the message can be classified and converted without depending on the Android framework.
+ */
+public interface MessageFields {
+	/**
+	 * Checks if the message has the field.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	boolean has(String key);
+	/**
+	 * Gets the value of the field.
+	 * 
+	 * @param key
+	 * @return null if the message doesn't have the field.
+	 */
+	Object get(String key);
+	/**
+	 * Gets the names of the fields.
+	 * 
+	 * @return
+	 */
+	Set<String> keySet();
+}
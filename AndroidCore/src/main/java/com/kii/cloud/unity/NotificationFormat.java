@@ -0,0 +1,37 @@
+package com.kii.cloud.unity;
+
+import org.json.JSONObject;
+
+/**
+ * Formatting of the values which are shown in the notification area.
+ */
+public class NotificationFormat {
+
+	private NotificationFormat() {
+	}
+	/**
+	 * Gets the text which is shown in the notification area.
+	 * 
+	 * @param json the received message. This is not used when text is a literal.
+	 * @param text literal, JSONPath or template, see {@link NotificationTemplate}.
+	 * @param fallback returned if text is empty or JSONPath doesn't match.
+	 * @return
+	 */
+	public static String getText(JSONObject json, String text, String fallback) {
+		return NotificationTemplate.compile(text).render(json, fallback);
+	}
+	/**
+	 * Convert string  value which indicates color into the integer value.
+	 * 
+	 * @param argbString #AARRGGBB
+	 * @return null if the value is not a color.
+	 */
+	public static Integer parseArgb(String argbString) {
+		try {
+			int argb = (int)Long.parseLong(argbString.replaceFirst("#", ""), 16);
+			return argb;
+		} catch (Exception ignore) {
+			return null;
+		}
+	}
+}
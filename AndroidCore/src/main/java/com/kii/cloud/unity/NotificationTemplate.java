@@ -0,0 +1,308 @@
+package com.kii.cloud.unity;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Precompiled text of the notification area.
+ * The text is one of the following.
+ * <ul>
+ * <li>Literal string. eg.) New message</li>
+ * <li>JSONPath. eg.) $.message</li>
+ * <li>Template which has JSONPath placeholders. eg.) {$.sender} scored {$.score}</li>
+ * </ul>
+ * The syntax of a placeholder is {JSONPath[:maxLength][|fallback]}.
+ * The value which is longer than maxLength is truncated and ends with an ellipsis.
+ * If a placeholder doesn't match and has no fallback, the whole text is replaced by the fallback of {@link #render(JSONObject, String)}.
+ * '{' which is not followed by '$' is a literal. "{{" is an escaped literal '{', so "Earn {{$100}!" is rendered as "Earn {$100}!".
+ * Note that a literal text written before templates were supported, which contains "{$", is now parsed as a placeholder and has to escape the '{'.
+ * A text is compiled once into a list of segments and compiled texts are cached, so rendering is a single pass without parsing.
+ */
+public class NotificationTemplate {
+
+	private static final int MAX_CACHE_SIZE = 64;
+	private static final Map<String, NotificationTemplate> CACHE = new LinkedHashMap<String, NotificationTemplate>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, NotificationTemplate> eldest) {
+			return this.size() > MAX_CACHE_SIZE;
+		}
+	};
+	private static final char ELLIPSIS = '\u2026';
+	private static final int NO_LIMIT = -1;
+
+	/**
+	 * Compiles a text into a reusable NotificationTemplate.
+	 * The result is cached, calling this again with the same text returns the same instance.
+	 * A placeholder whose JSONPath is invalid never matches.
+	 *
+	 * @param text literal, JSONPath or template.
+	 * @return
+	 */
+	public static NotificationTemplate compile(String text) {
+		String key = text == null ? "" : text;
+		synchronized (CACHE) {
+			NotificationTemplate template = CACHE.get(key);
+			if (template != null) {
+				return template;
+			}
+		}
+		NotificationTemplate template = new NotificationTemplate(key);
+		synchronized (CACHE) {
+			CACHE.put(key, template);
+		}
+		return template;
+	}
+
+	private final String text;
+	/**
+	 * Literal of each segment, null if the segment is a placeholder.
+	 */
+	private final String[] literals;
+	/**
+	 * JSONPath of each placeholder, null if the segment is a literal or the JSONPath is invalid.
+	 */
+	private final JsonPath[] paths;
+	/**
+	 * Fallback of each placeholder, null if the placeholder has no fallback.
+	 */
+	private final String[] fallbacks;
+	/**
+	 * Max length of each placeholder, NO_LIMIT if the placeholder is not truncated.
+	 */
+	private final int[] maxLengths;
+	/**
+	 * Sum of the length of the literals, which is used as the initial capacity of the StringBuilder.
+	 */
+	private final int literalLength;
+
+	private NotificationTemplate(String text) {
+		this.text = text;
+		List<String> literals = new ArrayList<String>();
+		List<JsonPath> paths = new ArrayList<JsonPath>();
+		List<String> fallbacks = new ArrayList<String>();
+		List<Integer> maxLengths = new ArrayList<Integer>();
+		if (JsonPath.isJsonQuery(text)) {
+			// Whole text is a JSONPath, which is the format before templates were supported.
+			literals.add(null);
+			paths.add(compilePath(text));
+			fallbacks.add(null);
+			maxLengths.add(NO_LIMIT);
+		} else {
+			StringBuilder literal = new StringBuilder();
+			int length = text.length();
+			int pos = 0;
+			while (pos < length) {
+				char c = text.charAt(pos);
+				if (c == '{' && pos + 1 < length && text.charAt(pos + 1) == '{') {
+					literal.append('{');
+					pos += 2;
+					continue;
+				}
+				int close = c == '{' && pos + 1 < length && text.charAt(pos + 1) == '$' ? findClose(text, pos + 1) : -1;
+				if (close < 0) {
+					literal.append(c);
+					pos++;
+					continue;
+				}
+				if (literal.length() > 0) {
+					literals.add(literal.toString());
+					paths.add(null);
+					fallbacks.add(null);
+					maxLengths.add(NO_LIMIT);
+					literal.setLength(0);
+				}
+				String placeholder = text.substring(pos + 1, close);
+				int end = findPathEnd(placeholder);
+				String fallback = null;
+				int maxLength = NO_LIMIT;
+				String options = placeholder.substring(end);
+				int bar = options.indexOf('|');
+				if (bar >= 0) {
+					fallback = options.substring(bar + 1);
+					options = options.substring(0, bar);
+				}
+				if (options.startsWith(":")) {
+					try {
+						maxLength = Math.max(1, Integer.parseInt(options.substring(1).trim()));
+					} catch (NumberFormatException ignore) {
+					}
+				}
+				literals.add(null);
+				paths.add(compilePath(placeholder.substring(0, end)));
+				fallbacks.add(fallback);
+				maxLengths.add(maxLength);
+				pos = close + 1;
+			}
+			if (literal.length() > 0) {
+				literals.add(literal.toString());
+				paths.add(null);
+				fallbacks.add(null);
+				maxLengths.add(NO_LIMIT);
+			}
+		}
+		int size = literals.size();
+		this.literals = literals.toArray(new String[size]);
+		this.paths = paths.toArray(new JsonPath[size]);
+		this.fallbacks = fallbacks.toArray(new String[size]);
+		this.maxLengths = new int[size];
+		int literalLength = 0;
+		for (int i = 0; i < size; i++) {
+			this.maxLengths[i] = maxLengths.get(i);
+			if (this.literals[i] != null) {
+				literalLength += this.literals[i].length();
+			}
+		}
+		this.literalLength = literalLength;
+	}
+	/**
+	 * Gets the text which this template was compiled from.
+	 *
+	 * @return
+	 */
+	public String getText() {
+		return this.text;
+	}
+	/**
+	 * Checks if the text has JSONPath, in other words the result depends on the message.
+	 *
+	 * @return
+	 */
+	public boolean hasPlaceholder() {
+		for (int i = 0; i < this.literals.length; i++) {
+			if (this.literals[i] == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * Renders the text with the values of the JSON.
+	 *
+	 * @param json the received message. This is not used when the text is a literal.
+	 * @param fallback returned if the text is empty or a placeholder without fallback doesn't match.
+	 * @return
+	 */
+	public String render(JSONObject json, String fallback) {
+		return this.render(json, null, fallback);
+	}
+	/**
+	 * Renders the text with the fields of the message.
+	 * The message doesn't need to be converted to JSON, see {@link JsonPath#evaluate(MessageFields)}.
+	 *
+	 * @param fields the received message. This is not used when the text is a literal.
+	 * @param fallback returned if the text is empty or a placeholder without fallback doesn't match.
+	 * @return
+	 */
+	public String render(MessageFields fields, String fallback) {
+		return this.render(null, fields, fallback);
+	}
+	private String render(JSONObject json, MessageFields fields, String fallback) {
+		if (this.literals.length == 0) {
+			return fallback;
+		}
+		if (this.literals.length == 1 && this.literals[0] != null) {
+			return this.literals[0];
+		}
+		StringBuilder builder = null;
+		for (int i = 0; i < this.literals.length; i++) {
+			String value = this.literals[i];
+			if (value == null) {
+				value = this.evaluate(i, json, fields);
+				if (value == null) {
+					if (this.fallbacks[i] == null) {
+						return fallback;
+					}
+					value = this.fallbacks[i];
+				}
+				if (this.literals.length == 1) {
+					return value;
+				}
+			}
+			if (builder == null) {
+				builder = new StringBuilder(this.literalLength + 32);
+			}
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+	private String evaluate(int i, JSONObject json, MessageFields fields) {
+		JsonPath path = this.paths[i];
+		if (path == null) {
+			return null;
+		}
+		String value;
+		try {
+			value = fields == null ? path.evaluate(json) : path.evaluate(fields);
+		} catch (Exception ignore) {
+			return null;
+		}
+		if (value != null && this.maxLengths[i] != NO_LIMIT && value.length() > this.maxLengths[i]) {
+			int end = this.maxLengths[i] - 1;
+			if (end > 0 && Character.isHighSurrogate(value.charAt(end - 1))) {
+				end--;
+			}
+			value = value.substring(0, end) + ELLIPSIS;
+		}
+		return value;
+	}
+	private static JsonPath compilePath(String query) {
+		try {
+			return JsonPath.compile(query);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	/**
+	 * Finds the '}' which closes the placeholder, skipping the quotes of JSONPath.
+	 *
+	 * @param text
+	 * @param from index of '$'
+	 * @return -1 if the placeholder is not closed.
+	 */
+	private static int findClose(String text, int from) {
+		char quote = 0;
+		boolean inPath = true;
+		for (int i = from; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (inPath && (c == '\'' || c == '"')) {
+				quote = c;
+			} else if (c == ':' || c == '|') {
+				inPath = false;
+			} else if (c == '}') {
+				return i;
+			}
+		}
+		return -1;
+	}
+	/**
+	 * Finds the end of JSONPath in the placeholder, which is ':', '|' or the end of the placeholder.
+	 *
+	 * @param placeholder
+	 * @return
+	 */
+	private static int findPathEnd(String placeholder) {
+		char quote = 0;
+		for (int i = 0; i < placeholder.length(); i++) {
+			char c = placeholder.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == ':' || c == '|') {
+				return i;
+			}
+		}
+		return placeholder.length();
+	}
+}
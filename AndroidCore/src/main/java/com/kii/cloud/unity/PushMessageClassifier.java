@@ -0,0 +1,91 @@
+package com.kii.cloud.unity;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * Classifies push messages of Kii Cloud by the names of their fields.
+ */
+public class PushMessageClassifier {
+
+	/**
+	 * Kind of push message.
+	 */
+	public enum Kind {
+		/**
+		 * 'Push to App' notifications
+		 */
+		PUSH_TO_APP,
+		/**
+		 * 'Push to User' notifications
+		 */
+		PUSH_TO_USER,
+		/**
+		 * 'Direct Push' notifications
+		 */
+		DIRECT_PUSH
+	}
+
+	public static final String[] PUSH_TO_APP_FIELDS = {"bucketType", "bucketID", "objectID", "modifiedAt"};
+	public static final String[] PUSH_TO_USER_FIELDS = {"topic"};
+
+	private PushMessageClassifier() {
+	}
+	/**
+	 * Classifies the message without converting it to JSON.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static Kind classify(MessageFields message) {
+		for (String field : PUSH_TO_APP_FIELDS) {
+			if (message.has(field)) {
+				return Kind.PUSH_TO_APP;
+			}
+		}
+		for (String field : PUSH_TO_USER_FIELDS) {
+			if (message.has(field)) {
+				return Kind.PUSH_TO_USER;
+			}
+		}
+		return Kind.DIRECT_PUSH;
+	}
+	/**
+	 * Classifies the message which has been converted to JSON.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static Kind classify(JSONObject message) {
+		return classify(new JsonMessageFields(message));
+	}
+	/**
+	 * Exposes the fields of the JSON message to {@link #classify(MessageFields)}.
+	 */
+	private static class JsonMessageFields implements MessageFields {
+		private final JSONObject json;
+		private JsonMessageFields(JSONObject json) {
+			this.json = json;
+		}
+		@Override
+		public boolean has(String key) {
+			return this.json.has(key);
+		}
+		@Override
+		public Object get(String key) {
+			return this.json.opt(key);
+		}
+		@Override
+		public Set<String> keySet() {
+			Set<String> keys = new HashSet<String>();
+			Iterator<?> it = this.json.keys();
+			while (it.hasNext()) {
+				keys.add((String)it.next());
+			}
+			return keys;
+		}
+	}
+}
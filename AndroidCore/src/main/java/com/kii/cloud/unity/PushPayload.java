@@ -0,0 +1,30 @@
+package com.kii.cloud.unity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Conversion of received push messages to JSON.
+ */
+public class PushPayload {
+
+	private PushPayload() {
+	}
+	/**
+	 * Converts the fields of the message to JSONObject.
+	 * The fields whose values cannot be put into JSON are skipped.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static JSONObject toJson(MessageFields message) {
+		JSONObject json = new JSONObject();
+		for (String key : message.keySet()) {
+			try {
+				json.put(key, message.get(key));
+			} catch (JSONException ignore) {
+			}
+		}
+		return json;
+	}
+}
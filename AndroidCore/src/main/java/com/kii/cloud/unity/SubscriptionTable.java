@@ -0,0 +1,325 @@
+package com.kii.cloud.unity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Table of the targets which subscribe push messages by topic, bucket ID or message type.
+ * The patterns are indexed by a prefix trie per field, so a message is matched by walking its values once
+ * regardless of the number of the subscriptions.
+ * A pattern which ends with '*' matches the values which start with the rest of the pattern, otherwise the pattern matches the value exactly.
+ * This class is thread safe.
+ */
+public class SubscriptionTable {
+
+	/**
+	 * Fields of the message which are matched with the patterns.
+	 */
+	public enum Field {
+		/**
+		 * 'topic' of 'Push to User' notifications.
+		 */
+		TOPIC("topic"),
+		/**
+		 * 'bucketID' of 'Push to App' notifications.
+		 */
+		BUCKET("bucketID"),
+		/**
+		 * Type of the message, which is PUSH_TO_APP, PUSH_TO_USER or DIRECT_PUSH.
+		 */
+		MESSAGE_TYPE(null);
+
+		private final String fieldName;
+
+		private Field(String fieldName) {
+			this.fieldName = fieldName;
+		}
+	}
+	/**
+	 * Method of the GameObject which receives the messages.
+	 */
+	public static class Target {
+		private final String gameObjectName;
+		private final String methodName;
+
+		public Target(String gameObjectName, String methodName) {
+			if (gameObjectName == null || methodName == null) {
+				throw new IllegalArgumentException("gameObjectName and methodName must not be null");
+			}
+			this.gameObjectName = gameObjectName;
+			this.methodName = methodName;
+		}
+		public String getGameObjectName() {
+			return this.gameObjectName;
+		}
+		public String getMethodName() {
+			return this.methodName;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Target)) {
+				return false;
+			}
+			Target other = (Target)o;
+			return this.gameObjectName.equals(other.gameObjectName) && this.methodName.equals(other.methodName);
+		}
+		@Override
+		public int hashCode() {
+			return this.gameObjectName.hashCode() * 31 + this.methodName.hashCode();
+		}
+		@Override
+		public String toString() {
+			return this.gameObjectName + "." + this.methodName;
+		}
+	}
+
+	private static final char WILDCARD = '*';
+
+	private final Node[] roots = new Node[Field.values().length];
+	private int size = 0;
+
+	public SubscriptionTable() {
+		for (int i = 0; i < this.roots.length; i++) {
+			this.roots[i] = new Node();
+		}
+	}
+	/**
+	 * Adds the subscription.
+	 *
+	 * @param field
+	 * @param pattern value of the field, or prefix of the value followed by '*'.
+	 * @param target
+	 * @return false if the target already subscribes the pattern.
+	 */
+	public synchronized boolean subscribe(Field field, String pattern, Target target) {
+		boolean prefix = isPrefix(pattern);
+		Node node = this.roots[field.ordinal()];
+		int length = prefix ? pattern.length() - 1 : pattern.length();
+		for (int i = 0; i < length; i++) {
+			node = node.getOrAddChild(pattern.charAt(i));
+		}
+		if (!node.add(prefix, target)) {
+			return false;
+		}
+		this.size++;
+		return true;
+	}
+	/**
+	 * Removes the subscription.
+	 *
+	 * @param field
+	 * @param pattern the pattern which is passed to {@link #subscribe(Field, String, Target)}.
+	 * @param target
+	 * @return false if the target doesn't subscribe the pattern.
+	 */
+	public synchronized boolean unsubscribe(Field field, String pattern, Target target) {
+		boolean prefix = isPrefix(pattern);
+		int length = prefix ? pattern.length() - 1 : pattern.length();
+		Node[] path = new Node[length + 1];
+		path[0] = this.roots[field.ordinal()];
+		for (int i = 0; i < length; i++) {
+			path[i + 1] = path[i].getChild(pattern.charAt(i));
+			if (path[i + 1] == null) {
+				return false;
+			}
+		}
+		if (!path[length].remove(prefix, target)) {
+			return false;
+		}
+		this.size--;
+		// Prune the nodes which no longer have subscriptions.
+		for (int i = length; i > 0 && path[i].isEmpty(); i--) {
+			path[i - 1].removeChild(pattern.charAt(i - 1));
+		}
+		return true;
+	}
+	/**
+	 * Removes all the subscriptions of the GameObject.
+	 *
+	 * @param gameObjectName
+	 * @return the number of the removed subscriptions.
+	 */
+	public synchronized int unsubscribeAll(String gameObjectName) {
+		int removed = 0;
+		for (Node root : this.roots) {
+			removed += root.removeAll(gameObjectName);
+		}
+		this.size -= removed;
+		return removed;
+	}
+	/**
+	 * Removes all the subscriptions.
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < this.roots.length; i++) {
+			this.roots[i] = new Node();
+		}
+		this.size = 0;
+	}
+	/**
+	 * Gets the number of the subscriptions.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+	/**
+	 * Checks if there is no subscription.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isEmpty() {
+		return this.size == 0;
+	}
+	/**
+	 * Gets the targets which subscribe the message.
+	 * A target which matches multiple patterns is returned only once.
+	 *
+	 * @param messageType PUSH_TO_APP, PUSH_TO_USER or DIRECT_PUSH.
+	 * @param message
+	 * @return empty if nobody subscribes the message.
+	 */
+	public synchronized Set<Target> match(String messageType, MessageFields message) {
+		Set<Target> targets = null;
+		for (Field field : Field.values()) {
+			Node root = this.roots[field.ordinal()];
+			if (root.isEmpty()) {
+				continue;
+			}
+			Object value = field.fieldName == null ? messageType : message.get(field.fieldName);
+			if (value != null) {
+				targets = root.match(value.toString(), targets);
+			}
+		}
+		return targets == null ? Collections.<Target>emptySet() : targets;
+	}
+	private static boolean isPrefix(String pattern) {
+		if (pattern == null) {
+			throw new IllegalArgumentException("pattern must not be null");
+		}
+		return pattern.length() > 0 && pattern.charAt(pattern.length() - 1) == WILDCARD;
+	}
+
+	private static class Node {
+		private char[] labels = new char[0];
+		private Node[] children = new Node[0];
+		/**
+		 * Targets which subscribe the value which ends at this node.
+		 */
+		private List<Target> exact;
+		/**
+		 * Targets which subscribe the values which start with the prefix which ends at this node.
+		 */
+		private List<Target> prefix;
+
+		Node getChild(char label) {
+			for (int i = 0; i < this.labels.length; i++) {
+				if (this.labels[i] == label) {
+					return this.children[i];
+				}
+			}
+			return null;
+		}
+		Node getOrAddChild(char label) {
+			Node child = this.getChild(label);
+			if (child == null) {
+				int n = this.labels.length;
+				char[] labels = new char[n + 1];
+				Node[] children = new Node[n + 1];
+				System.arraycopy(this.labels, 0, labels, 0, n);
+				System.arraycopy(this.children, 0, children, 0, n);
+				labels[n] = label;
+				children[n] = child = new Node();
+				this.labels = labels;
+				this.children = children;
+			}
+			return child;
+		}
+		void removeChild(char label) {
+			for (int i = 0; i < this.labels.length; i++) {
+				if (this.labels[i] == label) {
+					int n = this.labels.length - 1;
+					char[] labels = new char[n];
+					Node[] children = new Node[n];
+					System.arraycopy(this.labels, 0, labels, 0, i);
+					System.arraycopy(this.children, 0, children, 0, i);
+					System.arraycopy(this.labels, i + 1, labels, i, n - i);
+					System.arraycopy(this.children, i + 1, children, i, n - i);
+					this.labels = labels;
+					this.children = children;
+					return;
+				}
+			}
+		}
+		boolean add(boolean isPrefix, Target target) {
+			List<Target> targets = isPrefix ? this.prefix : this.exact;
+			if (targets == null) {
+				targets = new ArrayList<Target>(1);
+				if (isPrefix) {
+					this.prefix = targets;
+				} else {
+					this.exact = targets;
+				}
+			} else if (targets.contains(target)) {
+				return false;
+			}
+			targets.add(target);
+			return true;
+		}
+		boolean remove(boolean isPrefix, Target target) {
+			List<Target> targets = isPrefix ? this.prefix : this.exact;
+			return targets != null && targets.remove(target);
+		}
+		int removeAll(String gameObjectName) {
+			int removed = removeAll(this.exact, gameObjectName) + removeAll(this.prefix, gameObjectName);
+			for (int i = this.labels.length - 1; i >= 0; i--) {
+				Node child = this.children[i];
+				removed += child.removeAll(gameObjectName);
+				if (child.isEmpty()) {
+					this.removeChild(this.labels[i]);
+				}
+			}
+			return removed;
+		}
+		boolean isEmpty() {
+			return this.labels.length == 0 && (this.exact == null || this.exact.isEmpty()) && (this.prefix == null || this.prefix.isEmpty());
+		}
+		Set<Target> match(String value, Set<Target> targets) {
+			Node node = this;
+			for (int i = 0; node != null; i++) {
+				targets = addAll(targets, node.prefix);
+				if (i == value.length()) {
+					return addAll(targets, node.exact);
+				}
+				node = node.getChild(value.charAt(i));
+			}
+			return targets;
+		}
+		private static int removeAll(List<Target> targets, String gameObjectName) {
+			int removed = 0;
+			if (targets != null) {
+				for (int i = targets.size() - 1; i >= 0; i--) {
+					if (targets.get(i).getGameObjectName().equals(gameObjectName)) {
+						targets.remove(i);
+						removed++;
+					}
+				}
+			}
+			return removed;
+		}
+		private static Set<Target> addAll(Set<Target> targets, List<Target> values) {
+			if (values == null || values.isEmpty()) {
+				return targets;
+			}
+			if (targets == null) {
+				targets = new LinkedHashSet<Target>();
+			}
+			targets.addAll(values);
+			return targets;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.kii.cloud.unity;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class BucketChangeAggregatorTest {
+
+	private static MapFields change(String bucketID, String objectID, String modifiedAt, String type) {
+		MapFields message = new MapFields()
+			.put("bucketType", "rw")
+			.put("bucketID", bucketID)
+			.put("objectScopeType", "APP");
+		if (objectID != null) {
+			message.put("objectID", objectID);
+		}
+		if (modifiedAt != null) {
+			message.put("modifiedAt", modifiedAt);
+		}
+		if (type != null) {
+			message.put("type", type);
+		}
+		return message;
+	}
+
+	@Test
+	public void aggregatesChangesPerBucket() throws Exception {
+		BucketChangeAggregator aggregator = new BucketChangeAggregator(10);
+		assertTrue(aggregator.add(change("scores", "a", "100", "DATA_OBJECT_CREATED")));
+		assertFalse(aggregator.add(change("items", "x", "50", "DATA_OBJECT_UPDATED")));
+		assertFalse(aggregator.add(change("scores", "b", "300", "DATA_OBJECT_UPDATED")));
+		assertFalse(aggregator.add(change("scores", "a", "200", "DATA_OBJECT_UPDATED")));
+		assertEquals(4, aggregator.getMessageCount());
+
+		List<BucketChangeAggregator.ChangeSet> changeSets = aggregator.drain();
+		assertEquals(2, changeSets.size());
+		BucketChangeAggregator.ChangeSet scores = changeSets.get(0);
+		assertEquals("scores", scores.get("bucketID"));
+		assertEquals(3, scores.getCount());
+		assertEquals(Arrays.asList("a", "b"), Arrays.asList(scores.getObjectIDs().toArray()));
+		JSONObject json = scores.toJson();
+		assertEquals("rw", json.getString("bucketType"));
+		assertEquals("APP", json.getString("objectScopeType"));
+		assertFalse(json.has("objectScopeUserID"));
+		assertEquals(300, json.getLong("maxModifiedAt"));
+		assertEquals(3, json.getInt("count"));
+		assertFalse(json.getBoolean("truncated"));
+		assertEquals(1, json.getJSONObject("typeCounts").getInt("DATA_OBJECT_CREATED"));
+		assertEquals(2, json.getJSONObject("typeCounts").getInt("DATA_OBJECT_UPDATED"));
+		assertEquals("items", changeSets.get(1).get("bucketID"));
+	}
+	@Test
+	public void drainStartsOver() throws Exception {
+		BucketChangeAggregator aggregator = new BucketChangeAggregator(10);
+		assertTrue(aggregator.drain().isEmpty());
+		aggregator.add(change("scores", "a", "100", "DATA_OBJECT_CREATED"));
+		assertEquals(1, aggregator.drain().size());
+		assertEquals(0, aggregator.getMessageCount());
+		assertTrue(aggregator.drain().isEmpty());
+		assertTrue(aggregator.add(change("scores", "b", "100", "DATA_OBJECT_CREATED")));
+		assertEquals(1, aggregator.drain().get(0).getCount());
+	}
+	@Test
+	public void separatesScopes() throws Exception {
+		BucketChangeAggregator aggregator = new BucketChangeAggregator(10);
+		aggregator.add(change("scores", "a", "100", null));
+		aggregator.add(change("scores", "a", "100", null).put("objectScopeType", "APP_AND_USER").put("objectScopeUserID", "u1"));
+		aggregator.add(change("scores", "a", "100", null).put("objectScopeType", "APP_AND_USER").put("objectScopeUserID", "u2"));
+		List<BucketChangeAggregator.ChangeSet> changeSets = aggregator.drain();
+		assertEquals(3, changeSets.size());
+		assertNull(changeSets.get(0).get("objectScopeUserID"));
+		assertEquals("u1", changeSets.get(1).get("objectScopeUserID"));
+		assertTrue(changeSets.get(2).has("objectScopeUserID"));
+		assertEquals(4, changeSets.get(2).keySet().size());
+	}
+	@Test
+	public void truncatesObjectIDs() throws Exception {
+		BucketChangeAggregator aggregator = new BucketChangeAggregator(2);
+		aggregator.add(change("scores", "a", null, null));
+		aggregator.add(change("scores", "b", null, null));
+		aggregator.add(change("scores", "c", null, null));
+		aggregator.add(change("scores", "a", null, null));
+		BucketChangeAggregator.ChangeSet changeSet = aggregator.drain().get(0);
+		assertEquals(4, changeSet.getCount());
+		assertEquals(2, changeSet.getObjectIDs().size());
+		assertTrue(changeSet.toJson().getBoolean("truncated"));
+
+		aggregator = new BucketChangeAggregator(-1);
+		aggregator.add(change("scores", "a", null, null));
+		changeSet = aggregator.drain().get(0);
+		assertTrue(changeSet.getObjectIDs().isEmpty());
+		assertTrue(changeSet.toJson().getBoolean("truncated"));
+	}
+	@Test
+	public void toleratesMissingAndMalformedFields() throws Exception {
+		BucketChangeAggregator aggregator = new BucketChangeAggregator(10);
+		aggregator.add(change("scores", null, "not a number", null));
+		aggregator.add(change("scores", null, null, null));
+		aggregator.add(new MapFields());
+		List<BucketChangeAggregator.ChangeSet> changeSets = aggregator.drain();
+		assertEquals(2, changeSets.size());
+		JSONObject json = changeSets.get(0).toJson();
+		assertEquals(0, json.getLong("maxModifiedAt"));
+		assertEquals(0, json.getJSONArray("objectIDs").length());
+		assertEquals(2, json.getJSONObject("typeCounts").getInt("UNKNOWN"));
+		assertTrue(changeSets.get(1).keySet().isEmpty());
+		assertFalse(changeSets.get(1).has("bucketID"));
+	}
+	@Test
+	public void matchesSubscriptionsOfBucket() throws Exception {
+		SubscriptionTable table = new SubscriptionTable();
+		SubscriptionTable.Target target = new SubscriptionTable.Target("Scores", "OnChange");
+		table.subscribe(SubscriptionTable.Field.BUCKET, "score*", target);
+		BucketChangeAggregator aggregator = new BucketChangeAggregator(10);
+		aggregator.add(change("scores", "a", "100", "DATA_OBJECT_CREATED"));
+		aggregator.add(change("items", "x", "100", "DATA_OBJECT_CREATED"));
+		List<BucketChangeAggregator.ChangeSet> changeSets = aggregator.drain();
+		assertTrue(table.match("PUSH_TO_APP", changeSets.get(0)).contains(target));
+		assertTrue(table.match("PUSH_TO_APP", changeSets.get(1)).isEmpty());
+	}
+}
@@ -0,0 +1,100 @@
+package com.kii.cloud.unity;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class CompressedPayloadTest {
+
+	/**
+	 * {"message":"gzip"} compressed by gzip.
+	 */
+	private static final String GZIP = "H4sIAAAAAAACA6tWyk0tLk5MT1WyUkqvyixQqgUADcUNWRIAAAA=";
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	@Test
+	public void inflatesDeflateAndGzip() throws Exception {
+		String text = "{\"message\":\"héllo こんにちは\"}";
+		assertEquals(text, CompressedPayload.inflate(CompressedPayload.deflate(text), 1024));
+		assertEquals("{\"message\":\"gzip\"}", CompressedPayload.inflate(GZIP, 1024));
+		assertEquals("", CompressedPayload.inflate(CompressedPayload.deflate(""), 1024));
+	}
+	@Test
+	public void acceptsUrlSafeBase64AndWhitespaces() throws Exception {
+		String text = repeat('?', 10) + "~~~>>>" + repeat('ÿ', 10);
+		String encoded = CompressedPayload.deflate(text);
+		String urlSafe = encoded.replace('+', '-').replace('/', '_').replace("=", "");
+		StringBuilder wrapped = new StringBuilder();
+		for (int i = 0; i < urlSafe.length(); i += 8) {
+			wrapped.append(urlSafe, i, Math.min(urlSafe.length(), i + 8)).append("\r\n ");
+		}
+		assertEquals(text, CompressedPayload.inflate(wrapped.toString(), 1024));
+	}
+	@Test
+	public void mergesFieldsIntoJson() throws Exception {
+		JSONObject json = new JSONObject("{\"kii_z\":\"x\",\"message\":\"short\",\"sender\":\"alice\"}");
+		String payload = CompressedPayload.deflate("{\"message\":\"long\",\"data\":{\"a\":1}}");
+		assertSame(json, CompressedPayload.merge(json, payload, 1024));
+		assertEquals("long", json.getString("message"));
+		assertEquals("alice", json.getString("sender"));
+		assertEquals(1, json.getJSONObject("data").getInt("a"));
+	}
+	@Test
+	public void rejectsOversizedInflation() throws Exception {
+		// 1MB of zeros deflates to about 1KB.
+		String bomb = CompressedPayload.deflate(repeat('0', 1024 * 1024));
+		assertTrue(bomb.length() < 4096);
+		try {
+			CompressedPayload.inflate(bomb, CompressedPayload.DEFAULT_MAX_INFLATED_BYTES);
+			fail();
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().contains(String.valueOf(CompressedPayload.DEFAULT_MAX_INFLATED_BYTES)));
+		}
+		try {
+			CompressedPayload.merge(new JSONObject(), CompressedPayload.deflate("{\"message\":\"" + repeat('a', 100) + "\"}"), 100);
+			fail();
+		} catch (IOException expected) {
+		}
+		// Exactly the limit is accepted.
+		assertEquals(100, CompressedPayload.inflate(CompressedPayload.deflate(repeat('a', 100)), 100).length());
+	}
+	@Test
+	public void rejectsBrokenPayloads() throws Exception {
+		String[] broken = {"not base64!", "AAAA", CompressedPayload.deflate("{}").substring(0, 4)};
+		for (String payload : broken) {
+			try {
+				CompressedPayload.inflate(payload, 1024);
+				fail("Inflated " + payload);
+			} catch (IOException expected) {
+			}
+		}
+		try {
+			CompressedPayload.merge(new JSONObject(), CompressedPayload.deflate("[1, 2]"), 1024);
+			fail();
+		} catch (JSONException expected) {
+		}
+	}
+	@Test
+	public void compressesOnlyLongStoredValues() throws Exception {
+		assertNull(CompressedPayload.toStoredValue(null));
+		assertEquals("short", CompressedPayload.toStoredValue("short"));
+		String text = "{\"message\":\"" + repeat('a', 1000) + "\"}";
+		String stored = CompressedPayload.toStoredValue(text);
+		assertTrue(stored.startsWith(CompressedPayload.FIELD + ":"));
+		assertTrue(stored.length() < text.length());
+		assertEquals(text, CompressedPayload.fromStoredValue(stored));
+		// A value stored by the older version is not compressed.
+		assertEquals("{\"message\":\"hi\"}", CompressedPayload.fromStoredValue("{\"message\":\"hi\"}"));
+		assertNull(CompressedPayload.fromStoredValue(CompressedPayload.FIELD + ":broken!"));
+	}
+}
@@ -0,0 +1,100 @@
+package com.kii.cloud.unity;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class JsonPathTest {
+
+	private static final String JSON = "{\"message\":\"hello\",\"count\":3,\"nothing\":null,"
+			+ "\"data\":{\"name\":\"kii\",\"a.b\":\"dotted\",\"tags\":[\"x\",{\"y\":\"z\"}]}}";
+
+	@Test
+	public void queriesDotAndBracketNotations() throws Exception {
+		JSONObject json = new JSONObject(JSON);
+		assertEquals("hello", JsonPath.query(json, "$.message"));
+		assertEquals("3", JsonPath.query(json, "$.count"));
+		assertEquals("kii", JsonPath.query(json, "$.data.name"));
+		assertEquals("kii", JsonPath.query(json, "$['data']['name']"));
+		assertEquals("kii", JsonPath.query(json, "$[\"data\"].name"));
+		assertEquals("dotted", JsonPath.query(json, "$.data['a.b']"));
+		assertEquals("x", JsonPath.query(json, "$.data.tags[0]"));
+		assertEquals("z", JsonPath.query(json, "$.data.tags[ 1 ].y"));
+		// A name of the dot-notation ends at '.' or '[' only.
+		assertEquals("bracket", JsonPath.query(new JSONObject("{\"a]\":\"bracket\"}"), "$.a]"));
+	}
+	@Test
+	public void returnsNullIfNotFound() throws Exception {
+		JSONObject json = new JSONObject(JSON);
+		assertNull(JsonPath.query(json, "$.unknown"));
+		assertNull(JsonPath.query(json, "$.message.length"));
+		assertNull(JsonPath.query(json, "$.data.tags[2]"));
+		assertNull(JsonPath.query(json, "$.data[0]"));
+		assertNull(JsonPath.query(json, "$.message[0]"));
+		assertNull(JsonPath.query(json, "$.nothing"));
+		// An object is not a text.
+		assertNull(JsonPath.query(json, "$.data"));
+		assertNull(JsonPath.query(json, "$"));
+		assertNotNull(JsonPath.compile("$.data").find(json));
+		assertNull(JsonPath.query(null, "$.message"));
+	}
+	@Test
+	public void queryReturnsNullForMalformedPaths() throws Exception {
+		JSONObject json = new JSONObject(JSON);
+		assertNull(JsonPath.query(json, null));
+		assertNull(JsonPath.query(json, ""));
+		assertNull(JsonPath.query(json, "message"));
+		assertNull(JsonPath.query(json, "$."));
+		assertNull(JsonPath.query(json, "$..message"));
+		assertNull(JsonPath.query(json, "$.data[0"));
+		assertNull(JsonPath.query(json, "$.data[-1]"));
+		assertNull(JsonPath.query(json, "$.data[x]"));
+		assertNull(JsonPath.query(json, "$.data['name]"));
+		assertNull(JsonPath.query(json, "$message"));
+	}
+	@Test
+	public void compileRejectsMalformedPaths() throws Exception {
+		String[] malformed = {null, "", "message", "$.", "$.a.", "$..a", "$[", "$[]", "$[-1]", "$[1.5]", "$a"};
+		for (String query : malformed) {
+			try {
+				JsonPath.compile(query);
+				fail("Compiled " + query);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+	@Test
+	public void compileCachesPaths() throws Exception {
+		JsonPath path = JsonPath.compile("$.data.name");
+		assertSame(path, JsonPath.compile("$.data.name"));
+		assertEquals("$.data.name", path.getQuery());
+	}
+	@Test
+	public void evaluatesMessageFields() throws Exception {
+		MapFields fields = new MapFields()
+			.put("message", "hello")
+			.put("data", new JSONObject("{\"name\":\"kii\"}"))
+			.put("count", 3);
+		assertEquals("hello", JsonPath.compile("$.message").evaluate(fields));
+		assertEquals("kii", JsonPath.compile("$.data.name").evaluate(fields));
+		assertEquals("3", JsonPath.compile("$.count").evaluate(fields));
+		assertNull(JsonPath.compile("$.data").evaluate(fields));
+		// A message is not an array, and its fields are not parsed as JSON.
+		assertNull(JsonPath.compile("$[0]").evaluate(fields));
+		assertNull(JsonPath.compile("$.message.name").evaluate(fields));
+		assertNull(JsonPath.compile("$").evaluate(fields));
+		assertNull(JsonPath.compile("$.message").evaluate((MessageFields)null));
+	}
+	@Test
+	public void detectsJsonQueries() throws Exception {
+		assertTrue(JsonPath.isJsonQuery("$.message"));
+		assertTrue(JsonPath.isJsonQuery("$['message']"));
+		assertFalse(JsonPath.isJsonQuery(null));
+		assertFalse(JsonPath.isJsonQuery(""));
+		assertFalse(JsonPath.isJsonQuery("$"));
+		assertFalse(JsonPath.isJsonQuery("message"));
+		assertFalse(JsonPath.isJsonQuery("Price: $.99"));
+		assertFalse(JsonPath.isJsonQuery("$.a + $.b"));
+	}
+}
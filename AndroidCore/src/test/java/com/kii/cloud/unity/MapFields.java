@@ -0,0 +1,62 @@
+package com.kii.cloud.unity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * MessageFields backed by a Map, which stands in for the Bundle received from GCM.
+ */
+class MapFields implements MessageFields {
+
+	private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+	MapFields put(String key, Object value) {
+		this.fields.put(key, value);
+		return this;
+	}
+	public boolean has(String key) {
+		return this.fields.containsKey(key);
+	}
+	public Object get(String key) {
+		return this.fields.get(key);
+	}
+	public Set<String> keySet() {
+		return this.fields.keySet();
+	}
+	/**
+	 * Fields which GCM adds to every message.
+	 */
+	static MapFields gcm() {
+		return new MapFields()
+			.put("from", "1234567890")
+			.put("google.message_id", "0:1467351934345768%8b6ef7a5f9fd7ecd")
+			.put("collapse_key", "do_not_collapse")
+			.put("android.support.content.wakelockid", 1);
+	}
+	static MapFields directPush() {
+		return gcm()
+			.put("message", "{\"title\":\"Hello\",\"body\":\"You've got a new item\"}")
+			.put("sound", "default");
+	}
+	static MapFields pushToUser() {
+		return gcm()
+			.put("topic", "news")
+			.put("scope", "app")
+			.put("sender", "b4b2b0e1-9c5e-4f0e-8a5c-2a3f6ad2b1a7")
+			.put("when", "1467351934345")
+			.put("message", "Breaking news");
+	}
+	static MapFields pushToApp() {
+		return gcm()
+			.put("bucketType", "rw")
+			.put("bucketID", "scores")
+			.put("objectID", "d8dc9f29-0fb9-11e4-a12b-00163e02138f")
+			.put("modifiedAt", "1467351934345")
+			.put("type", "DATA_OBJECT_UPDATED")
+			.put("sender", "b4b2b0e1-9c5e-4f0e-8a5c-2a3f6ad2b1a7")
+			.put("when", "1467351934345")
+			.put("origin", "EVENT")
+			.put("appID", "abcd1234");
+	}
+}
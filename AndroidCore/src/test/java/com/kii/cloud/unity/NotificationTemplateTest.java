@@ -0,0 +1,96 @@
+package com.kii.cloud.unity;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class NotificationTemplateTest {
+
+	private static final String FALLBACK = "New message";
+
+	private static String render(String text, String json) throws Exception {
+		return NotificationTemplate.compile(text).render(new JSONObject(json), FALLBACK);
+	}
+
+	@Test
+	public void rendersLiterals() throws Exception {
+		assertEquals("Hello", render("Hello", "{}"));
+		assertFalse(NotificationTemplate.compile("Hello").hasPlaceholder());
+		assertEquals(FALLBACK, render("", "{}"));
+		assertEquals(FALLBACK, render(null, "{}"));
+		assertEquals("", NotificationTemplate.compile(null).getText());
+	}
+	@Test
+	public void rendersWholeJsonPath() throws Exception {
+		assertEquals("hi", render("$.message", "{\"message\":\"hi\"}"));
+		assertEquals(FALLBACK, render("$.message", "{}"));
+		assertTrue(NotificationTemplate.compile("$.message").hasPlaceholder());
+	}
+	@Test
+	public void rendersPlaceholders() throws Exception {
+		String json = "{\"sender\":\"alice\",\"score\":42}";
+		assertEquals("alice scored 42", render("{$.sender} scored {$.score}", json));
+		assertEquals("42", render("{$.score}", json));
+		assertEquals(FALLBACK, render("{$.sender} scored {$.unknown}", json));
+		assertEquals("alice scored ?", render("{$.sender} scored {$.unknown|?}", json));
+		assertEquals("alice scored ", render("{$.sender} scored {$.unknown|}", json));
+		assertEquals("a:b|c", render("{$.unknown|a:b|c}", json));
+		assertEquals("alice", render("{$['sender']}", json));
+		assertEquals("x", render("{$['a}b']}", "{\"a}b\":\"x\"}"));
+	}
+	@Test
+	public void truncatesLongValues() throws Exception {
+		String json = "{\"message\":\"abcdefghij\",\"emoji\":\"ab\\uD83D\\uDE00cd\"}";
+		assertEquals("abcd…", render("{$.message:5}", json));
+		assertEquals("abcdefghij", render("{$.message:10}", json));
+		assertEquals("…", render("{$.message:0}", json));
+		assertEquals("abcd…!", render("{$.message:5|none}!", json));
+		assertEquals("none!", render("{$.unknown:5|none}!", json));
+		// The surrogate pair is not split.
+		assertEquals("ab…", render("{$.emoji:4}", json));
+		// An invalid max length is ignored.
+		assertEquals("abcdefghij", render("{$.message:x}", json));
+	}
+	@Test
+	public void escapesBraces() throws Exception {
+		String json = "{\"price\":\"100\"}";
+		assertEquals("Earn {$100}!", render("Earn {{$100}!", json));
+		assertEquals("{100}", render("{{{$.price}}", json));
+		assertEquals("{", render("{{", json));
+		assertEquals("{{", render("{{{{", json));
+		assertFalse(NotificationTemplate.compile("Earn {{$.price}").hasPlaceholder());
+		assertEquals("Earn {$.price}", render("Earn {{$.price}", json));
+	}
+	@Test
+	public void keepsMalformedTemplatesAsLiterals() throws Exception {
+		String json = "{\"message\":\"hi\"}";
+		assertEquals("{message}", render("{message}", json));
+		assertEquals("{ $.message}", render("{ $.message}", json));
+		assertEquals("Unclosed {$.message", render("Unclosed {$.message", json));
+		assertEquals("{$['message}", render("{$['message}", json));
+		assertEquals("}", render("}", json));
+		assertEquals("{", render("{", json));
+		assertEquals("Price: $.99", render("Price: $.99", json));
+	}
+	@Test
+	public void invalidJsonPathNeverMatches() throws Exception {
+		String json = "{\"message\":\"hi\"}";
+		assertEquals(FALLBACK, render("{$..message}", json));
+		assertEquals("?", render("{$..message|?}", json));
+		assertEquals(FALLBACK, render("{$.message[}", json));
+		assertEquals(FALLBACK, render("{$}", json));
+	}
+	@Test
+	public void rendersMessageFields() throws Exception {
+		MapFields fields = new MapFields().put("sender", "alice").put("score", 42);
+		NotificationTemplate template = NotificationTemplate.compile("{$.sender} scored {$.score}");
+		assertEquals("alice scored 42", template.render(fields, FALLBACK));
+		assertEquals(FALLBACK, NotificationTemplate.compile("{$.unknown}").render(fields, FALLBACK));
+	}
+	@Test
+	public void compileCachesTemplates() throws Exception {
+		assertSame(NotificationTemplate.compile("{$.a} {$.b}"), NotificationTemplate.compile("{$.a} {$.b}"));
+		assertSame(NotificationTemplate.compile(null), NotificationTemplate.compile(""));
+	}
+}
@@ -0,0 +1,140 @@
+package com.kii.cloud.unity;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.kii.cloud.unity.SubscriptionTable.Field;
+import com.kii.cloud.unity.SubscriptionTable.Target;
+
+public class SubscriptionTableTest {
+
+	private static final Target NEWS = new Target("News", "OnPush");
+	private static final Target CHAT = new Target("Chat", "OnPush");
+	private static final Target CHAT_BADGE = new Target("Chat", "OnBadge");
+
+	private SubscriptionTable table;
+
+	@Before
+	public void setUp() throws Exception {
+		this.table = new SubscriptionTable();
+	}
+	private Set<Target> matchTopic(String topic) {
+		return this.table.match("PUSH_TO_USER", new MapFields().put("topic", topic));
+	}
+	private static Set<Target> targets(Target... targets) {
+		return new HashSet<Target>(Arrays.asList(targets));
+	}
+
+	@Test
+	public void matchesExactAndPrefixPatterns() throws Exception {
+		assertTrue(this.table.subscribe(Field.TOPIC, "news", NEWS));
+		assertTrue(this.table.subscribe(Field.TOPIC, "chat_*", CHAT));
+		assertEquals(targets(NEWS), matchTopic("news"));
+		assertEquals(Collections.emptySet(), matchTopic("new"));
+		assertEquals(Collections.emptySet(), matchTopic("news_sports"));
+		assertEquals(targets(CHAT), matchTopic("chat_guild"));
+		assertEquals(targets(CHAT), matchTopic("chat_"));
+		assertEquals(Collections.emptySet(), matchTopic("chat"));
+		assertEquals(Collections.emptySet(), matchTopic(""));
+	}
+	@Test
+	public void wildcardMatchesEverything() throws Exception {
+		this.table.subscribe(Field.TOPIC, "*", NEWS);
+		assertEquals(targets(NEWS), matchTopic(""));
+		assertEquals(targets(NEWS), matchTopic("anything"));
+		// The message without the field doesn't match.
+		assertEquals(Collections.emptySet(), this.table.match("PUSH_TO_USER", new MapFields()));
+	}
+	@Test
+	public void emptyPatternMatchesEmptyValueOnly() throws Exception {
+		this.table.subscribe(Field.TOPIC, "", NEWS);
+		assertEquals(targets(NEWS), matchTopic(""));
+		assertEquals(Collections.emptySet(), matchTopic("a"));
+	}
+	@Test
+	public void returnsTargetOnceForMultiplePatterns() throws Exception {
+		this.table.subscribe(Field.TOPIC, "chat_guild", CHAT);
+		this.table.subscribe(Field.TOPIC, "chat_*", CHAT);
+		this.table.subscribe(Field.TOPIC, "*", CHAT);
+		this.table.subscribe(Field.MESSAGE_TYPE, "PUSH_TO_USER", CHAT);
+		this.table.subscribe(Field.TOPIC, "chat_*", CHAT_BADGE);
+		assertEquals(5, this.table.size());
+		assertEquals(targets(CHAT, CHAT_BADGE), matchTopic("chat_guild"));
+	}
+	@Test
+	public void matchesEachField() throws Exception {
+		this.table.subscribe(Field.BUCKET, "scores", NEWS);
+		this.table.subscribe(Field.MESSAGE_TYPE, "DIRECT_PUSH", CHAT);
+		assertEquals(targets(NEWS), this.table.match("PUSH_TO_APP", new MapFields().put("bucketID", "scores")));
+		// The topic is not matched with the patterns of the bucket.
+		assertEquals(Collections.emptySet(), this.table.match("PUSH_TO_USER", new MapFields().put("topic", "scores")));
+		assertEquals(targets(CHAT), this.table.match("DIRECT_PUSH", new MapFields()));
+		assertEquals(Collections.emptySet(), this.table.match(null, new MapFields()));
+	}
+	@Test
+	public void rejectsDuplicatedSubscriptions() throws Exception {
+		assertTrue(this.table.subscribe(Field.TOPIC, "news", NEWS));
+		assertFalse(this.table.subscribe(Field.TOPIC, "news", new Target("News", "OnPush")));
+		// The exact pattern and the prefix pattern are different subscriptions.
+		assertTrue(this.table.subscribe(Field.TOPIC, "news*", NEWS));
+		assertEquals(2, this.table.size());
+	}
+	@Test
+	public void unsubscribesAndPrunes() throws Exception {
+		this.table.subscribe(Field.TOPIC, "chat_guild", CHAT);
+		this.table.subscribe(Field.TOPIC, "chat_*", CHAT);
+		assertFalse(this.table.unsubscribe(Field.TOPIC, "chat_g*", CHAT));
+		assertFalse(this.table.unsubscribe(Field.TOPIC, "chat", CHAT));
+		assertFalse(this.table.unsubscribe(Field.TOPIC, "chat_guild", NEWS));
+		assertFalse(this.table.unsubscribe(Field.BUCKET, "chat_guild", CHAT));
+		assertTrue(this.table.unsubscribe(Field.TOPIC, "chat_guild", CHAT));
+		assertFalse(this.table.unsubscribe(Field.TOPIC, "chat_guild", CHAT));
+		assertEquals(1, this.table.size());
+		assertEquals(targets(CHAT), matchTopic("chat_guild"));
+		assertTrue(this.table.unsubscribe(Field.TOPIC, "chat_*", CHAT));
+		assertTrue(this.table.isEmpty());
+		assertEquals(Collections.emptySet(), matchTopic("chat_guild"));
+		// The pruned nodes can be added again.
+		assertTrue(this.table.subscribe(Field.TOPIC, "chat_guild", CHAT));
+		assertEquals(targets(CHAT), matchTopic("chat_guild"));
+	}
+	@Test
+	public void unsubscribesAllOfGameObject() throws Exception {
+		this.table.subscribe(Field.TOPIC, "chat_*", CHAT);
+		this.table.subscribe(Field.TOPIC, "chat_guild", CHAT_BADGE);
+		this.table.subscribe(Field.MESSAGE_TYPE, "PUSH_TO_USER", CHAT);
+		this.table.subscribe(Field.TOPIC, "chat_guild", NEWS);
+		assertEquals(3, this.table.unsubscribeAll("Chat"));
+		assertEquals(0, this.table.unsubscribeAll("Chat"));
+		assertEquals(1, this.table.size());
+		assertEquals(targets(NEWS), matchTopic("chat_guild"));
+		this.table.clear();
+		assertTrue(this.table.isEmpty());
+		assertEquals(Collections.emptySet(), matchTopic("chat_guild"));
+	}
+	@Test
+	public void rejectsInvalidArguments() throws Exception {
+		try {
+			this.table.subscribe(Field.TOPIC, null, NEWS);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new Target(null, "OnPush");
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		try {
+			new Target("News", null);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.kii.cloud.storage.social.webview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Matches the URLs which are loaded by the WebView against the result URL
+ * of the server side authentication.
+ * The result URL is parsed only once, so the URLs of all the resources
+ * loaded by the WebView can be matched cheaply.
+ * The URLs are split the same lenient way as android.net.Uri.parse does,
+ * so URLs which are not valid RFC 2396 URIs (e.g. containing spaces, '|' or
+ * '_' in the host) are matched as they were before this class was extracted.
+ */
+public class ResultUrlMatcher {
+
+    private final String scheme;
+    private final String host;
+    private final String path;
+
+    public ResultUrlMatcher(String resultUrl) {
+        int ssi = resultUrl == null ? -1 : resultUrl.indexOf(':');
+        this.scheme = ssi == -1 ? null : resultUrl.substring(0, ssi);
+        this.host = ssi == -1 ? null : parseHost(resultUrl, ssi);
+        this.path = ssi == -1 ? null : parsePath(resultUrl, ssi);
+    }
+
+    /**
+     * Checks if the url has the same scheme, host and path as the result URL.
+     *
+     * @param url
+     * @return
+     */
+    public boolean matches(String url) {
+        if (this.scheme == null || url == null) {
+            return false;
+        }
+        // Cheap check to avoid parsing the URLs of unrelated resources.
+        int ssi = this.scheme.length();
+        if (url.length() <= ssi || url.charAt(ssi) != ':'
+                || !url.startsWith(this.scheme)) {
+            return false;
+        } else if (!equals(this.host, parseHost(url, ssi))) {
+            return false;
+        } else if (!equals(this.path, parsePath(url, ssi))) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the decoded host of the url in the same way as Uri.getHost().
+     */
+    private static String parseHost(String url, int ssi) {
+        int length = url.length();
+        if (length <= ssi + 2 || url.charAt(ssi + 1) != '/' || url.charAt(ssi + 2) != '/') {
+            return null;
+        }
+        int start = ssi + 3;
+        int end = start;
+        while (end < length) {
+            char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        String authority = url.substring(start, end);
+        int userInfoSeparator = authority.lastIndexOf('@');
+        int portSeparator = authority.indexOf(':', userInfoSeparator);
+        String encodedHost = portSeparator == -1
+                ? authority.substring(userInfoSeparator + 1)
+                : authority.substring(userInfoSeparator + 1, portSeparator);
+        return decode(encodedHost);
+    }
+
+    /**
+     * Returns the decoded path of the url in the same way as Uri.getPath().
+     */
+    private static String parsePath(String url, int ssi) {
+        int length = url.length();
+        if (ssi + 1 == length || url.charAt(ssi + 1) != '/') {
+            // Opaque URIs have no path.
+            return null;
+        }
+        int start;
+        if (length > ssi + 2 && url.charAt(ssi + 2) == '/') {
+            // Skip the authority.
+            start = ssi + 3;
+            while (start < length) {
+                char c = url.charAt(start);
+                if (c == '?' || c == '#') {
+                    return "";
+                } else if (c == '/') {
+                    break;
+                }
+                start++;
+            }
+        } else {
+            start = ssi + 1;
+        }
+        int end = start;
+        while (end < length) {
+            char c = url.charAt(end);
+            if (c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return decode(url.substring(start, end));
+    }
+
+    /**
+     * Decodes the %-escaped octets as UTF-8. Malformed escapes are kept as is.
+     */
+    private static String decode(String s) {
+        int percent = s.indexOf('%');
+        if (percent == -1) {
+            return s;
+        }
+        StringBuilder decoded = new StringBuilder(s.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        decoded.append(s, 0, percent);
+        int i = percent;
+        while (i < s.length()) {
+            int hi, lo;
+            if (s.charAt(i) == '%' && i + 2 < s.length()
+                    && (hi = Character.digit(s.charAt(i + 1), 16)) != -1
+                    && (lo = Character.digit(s.charAt(i + 2), 16)) != -1) {
+                bytes.write((hi << 4) | lo);
+                i += 3;
+                continue;
+            }
+            flush(bytes, decoded);
+            decoded.append(s.charAt(i));
+            i++;
+        }
+        flush(bytes, decoded);
+        return decoded.toString();
+    }
+
+    private static void flush(ByteArrayOutputStream bytes, StringBuilder decoded) {
+        if (bytes.size() == 0) {
+            return;
+        }
+        try {
+            decoded.append(bytes.toString("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        bytes.reset();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
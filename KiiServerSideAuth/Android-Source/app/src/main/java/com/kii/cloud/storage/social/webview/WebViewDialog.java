@@ -8,7 +8,6 @@ import org.json.JSONObject;
 
 import android.app.Activity;
 import android.app.Dialog;
-import android.net.Uri;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup.LayoutParams;
@@ -34,6 +33,7 @@ public class WebViewDialog {
         final Activity current = UnityPlayer.currentActivity;
         current.runOnUiThread(new Runnable() {
             private boolean isFinished = false;
+            private final ResultUrlMatcher resultUrlMatcher = new ResultUrlMatcher(resultUrl);
 
             @Override
             public void run() {
@@ -79,14 +79,14 @@ public class WebViewDialog {
                 webView.setWebViewClient(new WebViewClient() {
                     @Override
                     public void onLoadResource (WebView view, String url) {
-                        if (isResultUri(resultUrl, url)) {
+                        if (resultUrlMatcher.matches(url)) {
                             view.stopLoading();
                         }
                     }
 
                     @Override
                     public void onPageFinished(WebView target, String url) {
-                        if (isResultUri(resultUrl, url)) {
+                        if (resultUrlMatcher.matches(url)) {
                             finish(gameObjectName, createFinishedJSON(url));
                         }
                     }
@@ -113,22 +113,6 @@ public class WebViewDialog {
                         }
                         finish(gameObjectName, createRetryLaterJSON());
                     }
-
-                    private boolean isResultUri(
-                            String redirectUrl,
-                            String url)
-                    {
-                    	Uri redirectUri = Uri.parse(redirectUrl);
-                    	Uri uri = Uri.parse(url);
-                        if (!redirectUri.getScheme().equals(uri.getScheme())) {
-                            return false;
-                        } else if (!redirectUri.getHost().equals(uri.getHost())) {
-                            return false;
-                        } else if (!redirectUri.getPath().equals(uri.getPath())) {
-                            return false;
-                        }
-                        return true;
-                    }
                 });
                 webView.loadUrl(targetUrl);
 
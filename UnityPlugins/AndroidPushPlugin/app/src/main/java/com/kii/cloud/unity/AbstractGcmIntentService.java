@@ -2,15 +2,12 @@ package com.kii.cloud.unity;
 
 import java.util.List;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.google.android.gms.gcm.GoogleCloudMessaging;
-import com.unity3d.player.UnityPlayer;
 
 import android.app.ActivityManager;
 import android.app.Notification;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.IntentService;
@@ -20,12 +17,14 @@ import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Configuration;
 import android.content.res.Resources.NotFoundException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
 import android.util.Log;
@@ -38,25 +37,271 @@ import android.util.Log;
  */
 public abstract class AbstractGcmIntentService extends IntentService {
 
+	/**
+	 * The message which is being handled on the current thread.
+	 * This is used to share the serialized message when the JSONObject version of the methods are called.
+	 */
+	private static final ThreadLocal<PushMessage> HANDLING_MESSAGE = new ThreadLocal<PushMessage>();
+	/**
+	 * Collapses the waiting messages which have the same coalescing key.
+	 */
+	private static final MessageCoalescer COALESCER = new MessageCoalescer();
+	private static final String EXTRA_COALESCING_KEY = "com.kii.cloud.unity.COALESCING_KEY";
+	private static final String EXTRA_COALESCING_TICKET = "com.kii.cloud.unity.COALESCING_TICKET";
+	private static final String DO_NOT_COLLAPSE = "do_not_collapse";
+	/**
+	 * Action of the intent which is sent when the notification is dismissed.
+	 */
+	private static final String ACTION_NOTIFICATION_DELETED = "com.kii.cloud.unity.NOTIFICATION_DELETED";
+	/**
+	 * Group of the notification, which is added to the intent of the launch activity and the delete intent.
+	 */
+	static final String EXTRA_NOTIFICATION_GROUP = "com.kii.cloud.unity.NOTIFICATION_GROUP";
+
 	public AbstractGcmIntentService() {
 		super("KiiGcmIntentService");
 	}
+	/**
+	 * Fields of the message which identify the message for the duplicate filter.
+	 */
+	private String[] deduplicationKeys = DEFAULT_DEDUPLICATION_KEYS;
+	/**
+	 * Limit of the inflated size of the compressed payload.
+	 */
+	private int maxInflatedBytes = CompressedPayload.DEFAULT_MAX_INFLATED_BYTES;
+	/**
+	 * JSONPath of the coalescing key, null if the messages are not collapsed.
+	 */
+	private JsonPath coalescingKeyPath;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		String deduplicationKeys = this.getResouceValueAsString("kii_push_deduplicationKeys");
+		if (!TextUtils.isEmpty(deduplicationKeys)) {
+			this.deduplicationKeys = deduplicationKeys.split("\\s*,\\s*");
+		}
+		int maxInflatedBytes = this.getResouceValueAsInteger("kii_push_maxInflatedBytes");
+		if (maxInflatedBytes > 0) {
+			this.maxInflatedBytes = maxInflatedBytes;
+		}
+		String coalescingKey = this.getResouceValueAsString("kii_push_coalescingKey");
+		if (JsonPath.isJsonQuery(coalescingKey)) {
+			try {
+				this.coalescingKeyPath = JsonPath.compile(coalescingKey);
+			} catch (IllegalArgumentException e) {
+				Log.e("GcmIntentService", "#####Invalid kii_push_coalescingKey ex=" + e.getMessage());
+			}
+		}
+		// Replays the messages which were not handled before the previous process was killed.
+		// The journal is read on its own thread, so the main thread doesn't wait for the storage.
+		final Context context = this.getApplicationContext();
+		final ComponentName service = new ComponentName(this, this.getClass());
+		final PendingMessageJournal journal = PendingMessageJournal.getInstance(this);
+		journal.post(new Runnable() {
+			public void run() {
+				for (Intent orphan : journal.takeOrphans(service)) {
+					context.startService(orphan);
+				}
+			}
+		});
+	}
+	@Override
+	public int onStartCommand(final Intent intent, final int flags, final int startId) {
+		// The intent from the notification is handled here, and it is ignored by onHandleIntent.
+		if (this.handleNotificationIntent(intent)) {
+			return super.onStartCommand(intent, flags, startId);
+		}
+		// The intent is queued after the wake lock is released, so the waiting messages don't keep the device awake.
+		// The service isn't stopped in the meantime, because stopSelf is ignored until this start request is handled.
+		this.enqueueDurably(intent, new Runnable() {
+			public void run() {
+				AbstractGcmIntentService.super.onStartCommand(intent, flags, startId);
+			}
+		});
+		return START_NOT_STICKY;
+	}
 	@Override
 	protected void onHandleIntent(Intent intent) {
-		Log.d("GcmIntentService", "#####onHandleIntent");
+		if (PushLog.isDebugEnabled()) {
+			Log.d("GcmIntentService", "#####onHandleIntent");
+		}
+		if (isNotificationIntent(intent)) {
+			return;
+		}
+		PushMetrics metrics = PushMetrics.getInstance();
+		long receivedAt = intent.getLongExtra(PushMetrics.EXTRA_RECEIVED_AT, 0);
+		if (receivedAt != 0) {
+			metrics.record(PushMetrics.Stage.DEQUEUE, receivedAt);
+			intent.removeExtra(PushMetrics.EXTRA_RECEIVED_AT);
+		}
+		String coalescingKey = intent.getStringExtra(EXTRA_COALESCING_KEY);
+		long coalescingTicket = intent.getLongExtra(EXTRA_COALESCING_TICKET, 0);
+		intent.removeExtra(EXTRA_COALESCING_KEY);
+		intent.removeExtra(EXTRA_COALESCING_TICKET);
+		boolean collapsed = coalescingKey != null && !COALESCER.take(coalescingKey, coalescingTicket);
+		long journalId = intent.getLongExtra(PendingMessageJournal.EXTRA_JOURNAL_ID, 0);
+		intent.removeExtra(PendingMessageJournal.EXTRA_JOURNAL_ID);
 		GoogleCloudMessaging gcm = GoogleCloudMessaging.getInstance(this);
 		String messageType = gcm.getMessageType(intent);
-		Log.d("GcmIntentService", "#####messageType=" + messageType);
-		if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(messageType)) {
-			Bundle extras = intent.getExtras();
-			JSONObject message = this.toJson(extras);
-			MessageType type = getMessageType(message);
-			boolean isPropagate = this.onHandlePushMessage(this, type, message, this.isForeground());
-			if (isPropagate) {
-				KiiPushUnityPlugin.getInstance().sendPushNotification(this, message.toString());
+		if (PushLog.isDebugEnabled()) {
+			Log.d("GcmIntentService", "#####messageType=" + messageType);
+		}
+		try {
+			if (collapsed) {
+				if (PushLog.isDebugEnabled()) {
+					Log.d("GcmIntentService", "#####drop the message which is collapsed by the newer message key=" + coalescingKey);
+				}
+				metrics.increment(PushMetrics.Counter.COLLAPSED);
+				return;
+			}
+			if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(messageType)) {
+				PushMessage message = this.createPushMessage(intent.getExtras());
+				String deduplicationKey = this.getDeduplicationKey(message);
+				if (deduplicationKey != null && DuplicateFilter.getInstance(this).isDuplicate(deduplicationKey, System.currentTimeMillis())) {
+					if (PushLog.isDebugEnabled()) {
+						Log.d("GcmIntentService", "#####drop the duplicated message key=" + deduplicationKey);
+					}
+					metrics.increment(PushMetrics.Counter.DUPLICATED);
+					return;
+				}
+				long start = metrics.start();
+				MessageType type = this.classify(message);
+				metrics.record(PushMetrics.Stage.CLASSIFY, start);
+				start = metrics.start();
+				boolean isPropagate = this.onHandlePushMessage(this, type, message, this.isForeground());
+				metrics.record(PushMetrics.Stage.HANDLE, start);
+				metrics.increment(PushMetrics.Counter.HANDLED);
+				if (isPropagate) {
+					metrics.increment(PushMetrics.Counter.PROPAGATED);
+					KiiPushUnityPlugin.getInstance().sendPushNotification(this, message, type.name());
+				}
+				if (deduplicationKey != null) {
+					// Remembered only after the handling completes, so the message is handled again if it is replayed from the journal.
+					DuplicateFilter.getInstance(this).record(deduplicationKey, System.currentTimeMillis());
+				}
+			}
+		} finally {
+			if (journalId != 0) {
+				PendingMessageJournal.getInstance(this).remove(journalId);
+			}
+		}
+	}
+	/**
+	 * Writes the message to the journal, so that the message is not lost if the process is killed after releasing the wake lock.
+	 * After the message is synced with the other messages in the window, this releases the wake lock and registers the intent
+	 * to collapse the older messages on the thread of the journal, and then runs the task on the main thread to queue the intent.
+	 * The intents are queued in the received order. The message is removed from the journal after it is handled.
+	 * 
+	 * @param intent
+	 * @param queue
+	 */
+	void enqueueDurably(final Intent intent, final Runnable queue) {
+		PendingMessageJournal.getInstance(this).append(this.getJournalExtras(intent), new PendingMessageJournal.Callback() {
+			public void onCommitted(long id) {
+				try {
+					if (id != 0) {
+						intent.putExtra(PendingMessageJournal.EXTRA_JOURNAL_ID, id);
+					}
+					releaseWakeLock(intent);
+					offerForCoalescing(intent);
+				} catch (RuntimeException e) {
+					Log.e("GcmIntentService", "#####Failed to get the coalescing key ex=" + e.getMessage(), e);
+				} finally {
+					handler.post(queue);
+				}
+			}
+		});
+	}
+	/**
+	 * Gets the extras of the message to be written to the journal.
+	 * 
+	 * @param intent
+	 * @return null if the message is not written.
+	 */
+	private Bundle getJournalExtras(Intent intent) {
+		if (intent == null || intent.hasExtra(PendingMessageJournal.EXTRA_JOURNAL_ID)) {
+			// The message which was left by the previous process is already in the journal.
+			return null;
+		}
+		Bundle extras = intent.getExtras();
+		if (extras == null || !GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(GoogleCloudMessaging.getInstance(this).getMessageType(intent))) {
+			return null;
+		}
+		// The extras which are added in this process are meaningless for the next process.
+		extras.remove(PushMetrics.EXTRA_RECEIVED_AT);
+		return extras;
+	}
+	/**
+	 * Releases the wake lock which is acquired by GCMBroadcastReceiver, and records how long it was held.
+	 * 
+	 * @param intent
+	 */
+	private void releaseWakeLock(Intent intent) {
+		if (intent != null && GCMBroadcastReceiver.completeWakefulIntent(intent)) {
+			// completeWakefulIntent warns if it is called again for the same intent.
+			intent.removeExtra(GCMBroadcastReceiver.EXTRA_WAKE_LOCK_ID);
+			long receivedAt = intent.getLongExtra(PushMetrics.EXTRA_RECEIVED_AT, 0);
+			if (receivedAt != 0) {
+				PushMetrics.getInstance().record(PushMetrics.Stage.WAKE_LOCK, receivedAt);
 			}
 		}
-		GCMBroadcastReceiver.completeWakefulIntent(intent);
+	}
+	/**
+	 * Creates the received message.
+	 * If the message has the compressed payload ({@link CompressedPayload#FIELD}), the payload is inflated and merged into the JSON of the message,
+	 * and the compressed field is removed. Otherwise the message is a lazy view of the Bundle.
+	 * 
+	 * @param extras
+	 * @return
+	 */
+	private PushMessage createPushMessage(Bundle extras) {
+		String compressed = extras.getString(CompressedPayload.FIELD);
+		if (compressed != null) {
+			extras.remove(CompressedPayload.FIELD);
+			try {
+				JSONObject json = CompressedPayload.merge(this.toJson(extras), compressed, this.maxInflatedBytes);
+				PushMetrics.getInstance().increment(PushMetrics.Counter.DECOMPRESSED);
+				return new PushMessage(json);
+			} catch (Exception e) {
+				// Passes the message as it is received, so that the application can handle it.
+				Log.e("GcmIntentService", "#####Failed to inflate the compressed payload ex=" + e.getMessage());
+				PushMetrics.getInstance().increment(PushMetrics.Counter.DECOMPRESSION_FAILED);
+				extras.putString(CompressedPayload.FIELD, compressed);
+			}
+		}
+		return new PushMessage(extras) {
+			@Override
+			protected JSONObject toJson(Bundle bundle) {
+				return AbstractGcmIntentService.this.toJson(bundle);
+			}
+		};
+	}
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		// The pending writes are committed on their background threads, the main thread must not wait for the storage.
+		KiiPushUnityPlugin.getInstance().flushMessagesInBackground();
+		DuplicateFilter.getInstance(this).flushInBackground();
+	}
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+		super.onConfigurationChanged(newConfig);
+		NotificationResources.getInstance().clearResolved();
+		LargeIconCache.getInstance().evictAll();
+	}
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		LargeIconCache.getInstance().evictAll();
+	}
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level >= TRIM_MEMORY_RUNNING_LOW) {
+			LargeIconCache.getInstance().evictAll();
+		}
 	}
 	/**
 	 * Called by IntentService when service receives push notification.
@@ -69,20 +314,165 @@ public abstract class AbstractGcmIntentService extends IntentService {
 	 */
 	protected abstract boolean onHandlePushMessage(Context context, MessageType messageType, JSONObject receivedMessage, boolean isForeground);
 	/**
-	 * Converts Bundle to JSONObject.
+	 * Called by IntentService when service receives push notification.
+	 * Override this method instead of {@link #onHandlePushMessage(Context, MessageType, JSONObject, boolean)}
+	 * if you don't always need the message as JSON. The JSON is built only when {@link PushMessage#getJson()} is called.
+	 * The default implementation builds the JSON and calls {@link #onHandlePushMessage(Context, MessageType, JSONObject, boolean)}.
+	 * 
+	 * @param context
+	 * @param messageType
+	 * @param receivedMessage 
+	 * @param isForeground
+	 * @return Return true if you want to raise a receiving event to the Unity.
+	 */
+	protected boolean onHandlePushMessage(Context context, MessageType messageType, PushMessage receivedMessage, boolean isForeground) {
+		HANDLING_MESSAGE.set(receivedMessage);
+		try {
+			return this.onHandlePushMessage(context, messageType, receivedMessage.getJson(), isForeground);
+		} finally {
+			HANDLING_MESSAGE.remove();
+			// The subclass may have modified the JSON after the notification serialized it.
+			receivedMessage.invalidatePayload();
+		}
+	}
+	/**
+	 * Gets the key which identifies the message to drop the duplicates.
+	 * The key is made from the fields which are specified by kii_push_deduplicationKeys in the resource file (default is google.message_id).
+	 * 
+	 * @param message
+	 * @return null if the message doesn't have the fields, the message is not filtered in this case.
+	 */
+	protected String getDeduplicationKey(PushMessage message) {
+		StringBuilder key = new StringBuilder();
+		for (String field : this.deduplicationKeys) {
+			String value = message.getString(field);
+			if (value == null) {
+				return null;
+			}
+			if (key.length() > 0) {
+				key.append('|');
+			}
+			key.append(value.replace('\n', ' '));
+		}
+		return key.length() == 0 ? null : key.toString();
+	}
+	/**
+	 * Checks if the waiting messages are collapsed by {@link #getCoalescingKey(PushMessage)}.
+	 * The default implementation returns true only if kii_push_coalescingKey is specified in the resource file,
+	 * so every message is handled by default. Return true if the subclass overrides getCoalescingKey.
 	 * 
-	 * @param bundle
 	 * @return
 	 */
-	protected JSONObject toJson(Bundle bundle) {
-		JSONObject json = new JSONObject();
-		for (String key : bundle.keySet()) {
+	protected boolean isCoalescingEnabled() {
+		return this.coalescingKeyPath != null;
+	}
+	/**
+	 * Gets the key to collapse the waiting messages. While the messages which have the same key are waiting to be handled,
+	 * only the newest one is handled and the others are dropped.
+	 * This is called on the thread of the journal only if {@link #isCoalescingEnabled()} returns true.
+	 * The compressed payload ({@link CompressedPayload#FIELD}) has been inflated and merged into the message.
+	 * The default implementation uses the value of kii_push_coalescingKey (JSONPath) in the resource file
+	 * (e.g. $.collapse_key, the value do_not_collapse is not collapsed).
+	 * 
+	 * @param message
+	 * @return null if the message is not collapsed.
+	 */
+	protected String getCoalescingKey(PushMessage message) {
+		if (this.coalescingKeyPath == null) {
+			return null;
+		}
+		String value = this.coalescingKeyPath.evaluate(message);
+		if (value == null || DO_NOT_COLLAPSE.equals(value)) {
+			return null;
+		}
+		return this.coalescingKeyPath.getQuery() + "=" + value;
+	}
+	/**
+	 * Handles the intent which is sent when the notification is dismissed, the group of the notification starts over.
+	 * The tapped notification launches the activity directly, and its group is reset by ForegroundTracker.
+	 * This must be called on the main thread, i.e. in onStartCommand.
+	 * 
+	 * @param intent
+	 * @return false if the intent is not from the notification.
+	 */
+	boolean handleNotificationIntent(Intent intent) {
+		if (!isNotificationIntent(intent)) {
+			return false;
+		}
+		NotificationCoordinator.getInstance().reset(intent.getStringExtra(EXTRA_NOTIFICATION_GROUP));
+		return true;
+	}
+	private static boolean isNotificationIntent(Intent intent) {
+		return intent != null && ACTION_NOTIFICATION_DELETED.equals(intent.getAction());
+	}
+	/**
+	 * Registers the intent to collapse the older messages with the same coalescing key.
+	 * This must be called in the received order before the intent is queued, i.e. on the thread of the journal.
+	 * 
+	 * @param intent
+	 */
+	void offerForCoalescing(Intent intent) {
+		Bundle extras = intent == null || !this.isCoalescingEnabled() ? null : intent.getExtras();
+		if (extras == null || !GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(GoogleCloudMessaging.getInstance(this).getMessageType(intent))) {
+			return;
+		}
+		String key = this.getCoalescingKey(this.inflateForCoalescing(extras));
+		if (key != null) {
+			intent.putExtra(EXTRA_COALESCING_KEY, key);
+			intent.putExtra(EXTRA_COALESCING_TICKET, COALESCER.offer(key));
+		}
+	}
+	/**
+	 * Creates the message to get the coalescing key. The compressed payload is inflated in the same way as the handled message,
+	 * so the key can be a field of the compressed payload. The message is passed as it is received if the payload is broken,
+	 * the failure is reported when the message is handled.
+	 * 
+	 * @param extras
+	 * @return
+	 */
+	private PushMessage inflateForCoalescing(Bundle extras) {
+		String compressed = extras.getString(CompressedPayload.FIELD);
+		if (compressed != null) {
+			Bundle fields = new Bundle(extras);
+			fields.remove(CompressedPayload.FIELD);
 			try {
-				json.put(key, bundle.get(key));
-			} catch (JSONException ignore) {
+				return new PushMessage(CompressedPayload.merge(this.toJson(fields), compressed, this.maxInflatedBytes));
+			} catch (Exception ignore) {
 			}
 		}
-		return json;
+		return new PushMessage(extras);
+	}
+	/**
+	 * Gets the message which is being handled if it is the specified JSON, otherwise wraps the JSON.
+	 * 
+	 * @param json
+	 * @return
+	 */
+	protected PushMessage getHandlingMessage(JSONObject json) {
+		PushMessage handlingMessage = HANDLING_MESSAGE.get();
+		if (handlingMessage == null || !handlingMessage.isJsonBuilt() || handlingMessage.getJson() != json) {
+			handlingMessage = new PushMessage(json);
+		}
+		return handlingMessage;
+	}
+	/**
+	 * Checks if the service calls the JSONObject versions of getMessageType, onHandlePushMessage, showNotificationArea and getText.
+	 * The default implementation returns true for compatibility, so the JSON is built for every message.
+	 * Return false if the subclass overrides only the PushMessage versions, the JSON is built only when it is needed in this case.
+	 * 
+	 * @return
+	 */
+	protected boolean isJsonCallbackEnabled() {
+		return true;
+	}
+	/**
+	 * Converts Bundle to JSONObject.
+	 * 
+	 * @param bundle
+	 * @return
+	 */
+	protected JSONObject toJson(Bundle bundle) {
+		return PushPayload.toJson(new PushMessage(bundle));
 	}
 	/**
 	 * Get ARBG color for notification color
@@ -163,15 +553,100 @@ public abstract class AbstractGcmIntentService extends IntentService {
 		}
 		return "Missing @string/app_name";
 	}
+	/**
+	 * Gets the component of the activity which is launched when the notification is tapped.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	protected ComponentName getLaunchComponent(Context context) {
+		String launchClassName = context.getPackageManager().getLaunchIntentForPackage(context.getPackageName()).getComponent().getClassName();
+		return new ComponentName(context.getPackageName(), launchClassName);
+	}
+	/**
+	 * Gets the resources which are used to show a notification.
+	 * The values which are not resolved yet are resolved by getSmallIcon, getLargeIcon, getSound, getNotificationColor, getAppName and getLaunchComponent,
+	 * and are kept in the process-wide NotificationResources. So these methods are called only once.
+	 * The returned value is a snapshot of the process-wide NotificationResources.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	protected NotificationResources getNotificationResources(Context context) {
+		NotificationResources resources = NotificationResources.getInstance();
+		synchronized (resources) {
+			boolean resolved = false;
+			resources.setResolving(true);
+			try {
+				if (resources.getSmallIcon() == null) {
+					resources.setSmallIcon(this.getSmallIcon(context));
+					resolved = true;
+				}
+				if (resources.getLargeIcon() == null) {
+					resources.setLargeIcon(this.getLargeIcon(context));
+					resolved = true;
+				}
+				if (resources.getSound() == null) {
+					resources.setSound(this.getSound());
+					resolved = true;
+				}
+				if (!resources.isNotificationColorResolved()) {
+					resources.setNotificationColor(this.getNotificationColor(context));
+					resolved = true;
+				}
+				if (resources.getAppName() == null) {
+					resources.setAppName(this.getAppName(context));
+					resolved = true;
+				}
+				if (resources.getLaunchComponent() == null) {
+					resources.setLaunchComponent(this.getLaunchComponent(context));
+					resolved = true;
+				}
+				if (resolved) {
+					resources.incrementResolutionCount();
+				}
+			} finally {
+				resources.setResolving(false);
+			}
+			return resources.snapshot();
+		}
+	}
 	/**
 	 * Checks if the application is on foreground.
+	 * The result is answered by ForegroundTracker if it has been registered, otherwise asks ActivityManager.
 	 * 
 	 * @return
 	 */
 	protected boolean isForeground() {
+		boolean isInForeground = false;
+		ForegroundTracker tracker = ForegroundTracker.getInstance();
+		if (tracker.isRegistered()) {
+			isInForeground = tracker.isForeground();
+		} else {
+			isInForeground = this.isForegroundByActivityManager();
+		}
+		if (isInForeground) {
+			if (PushLog.isDebugEnabled()) {
+				Log.d("GcmIntentService", "#####app is in foreground");
+			}
+		} else {
+			if (PushLog.isDebugEnabled()) {
+				Log.d("GcmIntentService", "#####app is in background");
+			}
+		}
+		return isInForeground;
+	}
+	/**
+	 * Checks if the application is on foreground by asking ActivityManager.
+	 * 
+	 * @return
+	 */
+	private boolean isForegroundByActivityManager() {
 		boolean isInForeground = false;
 		ActivityManager am = (ActivityManager) this.getSystemService(Context.ACTIVITY_SERVICE);
-		Log.d("GcmIntentService", "#####Android API LEVEL=" + Build.VERSION.SDK_INT);
+		if (PushLog.isDebugEnabled()) {
+			Log.d("GcmIntentService", "#####Android API LEVEL=" + Build.VERSION.SDK_INT);
+		}
 		if (Build.VERSION.SDK_INT > 20) {
 			List<ActivityManager.RunningAppProcessInfo> runningProcesses = am.getRunningAppProcesses();
 			for (ActivityManager.RunningAppProcessInfo processInfo : runningProcesses) {
@@ -190,11 +665,6 @@ public abstract class AbstractGcmIntentService extends IntentService {
 				isInForeground = true;
 			}
 		}
-		if (isInForeground) {
-			Log.d("GcmIntentService", "#####app is in foreground");
-		} else {
-			Log.d("GcmIntentService", "#####app is in background");
-		}
 		return isInForeground;
 	}
 	/**
@@ -258,77 +728,131 @@ public abstract class AbstractGcmIntentService extends IntentService {
 	 * @param text Literal text or JsonPath
 	 */
 	protected void showNotificationArea(Context context, JSONObject message, boolean useSound, String ledColor, long vibrationMilliseconds, String title, String ticker, String text) {
-		Log.d("GcmIntentService", "#####showNotificationArea");
-		NotificationManager notificationManager = (NotificationManager)this.getSystemService(Context.NOTIFICATION_SERVICE);
-		if (notificationManager != null) {
-			
-			String notificationTitle = this.getText(message, title, this.getAppName(context));
-			String notificationTicker = this.getText(message, ticker, "");
-			String notificationText = this.getText(message, text, "");
-			
-			String launchClassName = this.getPackageManager().getLaunchIntentForPackage(this.getPackageName()).getComponent().getClassName();
-			ComponentName componentName = new ComponentName(this.getPackageName(), launchClassName);
-			Intent notificationIntent = (new Intent()).setComponent(componentName);
-			notificationIntent.putExtra("notificationData", message.toString());
-			PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-			
-			int smallIcon = this.getSmallIcon(context);
-			int largeIcon = this.getLargeIcon(context);
-			NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this)
-				.setContentIntent(pendingIntent)
-				.setPriority(NotificationCompat.PRIORITY_HIGH)
-				.setAutoCancel(true)
-				.setWhen(System.currentTimeMillis())
-				.setContentTitle(notificationTitle)
-				.setTicker(notificationTicker)
-				.setContentText(notificationText);
-			if (smallIcon != 0) {
-				notificationBuilder.setSmallIcon(smallIcon);
-			}
-			if (largeIcon != 0) {
-				Bitmap largeIconBitmap = BitmapFactory.decodeResource(getResources(), largeIcon);
-				if (largeIconBitmap != null) {
-					notificationBuilder.setLargeIcon(largeIconBitmap);
+		this.buildAndShowNotificationArea(context, this.getHandlingMessage(message), useSound, ledColor, vibrationMilliseconds, title, ticker, text);
+	}
+	/**
+	 * Shows a received message in the notification area.
+	 * 
+	 * @param context
+	 * @param message 
+	 * @param useSound 
+	 * @param ledColor format is '#AARRGGBB'
+	 * @param vibrationMilliseconds set 0 if you want to disable vibration.
+	 * @param title Literal text or JsonPath
+	 * @param text Literal text or JsonPath
+	 */
+	protected void showNotificationArea(Context context, PushMessage message, boolean useSound, String ledColor, long vibrationMilliseconds, String title, String ticker, String text) {
+		if (this.isJsonCallbackEnabled()) {
+			this.showNotificationArea(context, message.getJson(), useSound, ledColor, vibrationMilliseconds, title, ticker, text);
+		} else {
+			this.buildAndShowNotificationArea(context, message, useSound, ledColor, vibrationMilliseconds, title, ticker, text);
+		}
+	}
+	private void buildAndShowNotificationArea(Context context, PushMessage message, final boolean useSound, final String ledColor, final long vibrationMilliseconds, String title, String ticker, String text) {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("GcmIntentService", "#####showNotificationArea");
+		}
+		final Context applicationContext = context.getApplicationContext();
+		final NotificationResources resources = this.getNotificationResources(context);
+		final String notificationTitle = this.getText(message, title, resources.getAppName());
+		final String notificationTicker = this.getText(message, ticker, "");
+		final String notificationText = this.getText(message, text, "");
+		final String payload = message.getPayload();
+		final String group = this.getNotificationGroup(message);
+		final ComponentName service = new ComponentName(applicationContext, this.getClass());
+		
+		NotificationCoordinator.getInstance().post(context, group, notificationText, new NotificationCoordinator.NotificationBuilder() {
+			public Notification build(int count, List<String> lines) {
+				// The activity is launched directly, a service trampoline is blocked on Android 12 or later.
+				// ForegroundTracker starts the group over when the activity is resumed with the group.
+				Intent notificationIntent = new Intent().setComponent(resources.getLaunchComponent());
+				notificationIntent.putExtra(EXTRA_NOTIFICATION_GROUP, group);
+				notificationIntent.putExtra("notificationData", payload);
+				PendingIntent pendingIntent = PendingIntent.getActivity(applicationContext, group.hashCode(), notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+				// The service starts the group over, see handleNotificationIntent.
+				Intent deleteIntent = new Intent(ACTION_NOTIFICATION_DELETED).setComponent(service);
+				deleteIntent.putExtra(EXTRA_NOTIFICATION_GROUP, group);
+				PendingIntent pendingDeleteIntent = PendingIntent.getService(applicationContext, group.hashCode(), deleteIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+				
+				int smallIcon = resources.getSmallIcon();
+				int largeIcon = resources.getLargeIcon();
+				NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(applicationContext)
+					.setContentIntent(pendingIntent)
+					.setDeleteIntent(pendingDeleteIntent)
+					.setPriority(NotificationCompat.PRIORITY_HIGH)
+					.setAutoCancel(true)
+					.setOnlyAlertOnce(true)
+					.setWhen(System.currentTimeMillis())
+					.setContentTitle(notificationTitle)
+					.setTicker(notificationTicker)
+					.setContentText(notificationText);
+				if (count > 1) {
+					NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+					for (String line : lines) {
+						style.addLine(line);
+					}
+					notificationBuilder.setNumber(count).setStyle(style);
 				}
-			}
-			Integer notificationColor = this.getNotificationColor(context);
-			if (notificationColor != null) {
-				notificationBuilder.setColor(notificationColor);
-			}
-			Notification notification = notificationBuilder.build();
-			notification.defaults = 0;
-			if (useSound) {
-				int sound = this.getSound();
-				if (sound == 0) {
-					notification.defaults |= Notification.DEFAULT_SOUND;
-				} else {
-					Uri soundUri = Uri.parse("android.resource://" + UnityPlayer.currentActivity.getPackageName()  + "/" + sound);
-					notification.sound = soundUri;
+				if (smallIcon != 0) {
+					notificationBuilder.setSmallIcon(smallIcon);
 				}
-			}
-			if ("DEFAULT".equalsIgnoreCase(ledColor)) {
-				notification.defaults |= Notification.DEFAULT_LIGHTS;
-			} else if (!TextUtils.isEmpty(ledColor)) {
-				try {
-					Integer argb = parseArgb(ledColor);
-					notification.flags |= Notification.FLAG_SHOW_LIGHTS;
-					if (argb != null) {
-						notification.ledARGB = argb;
+				if (largeIcon != 0) {
+					Bitmap largeIconBitmap = LargeIconCache.getInstance().getBitmap(applicationContext.getResources(), largeIcon);
+					if (largeIconBitmap != null) {
+						notificationBuilder.setLargeIcon(largeIconBitmap);
 					}
-					notification.ledOnMS = 1000;
-					notification.ledOffMS = 1000;
-				} catch (Exception ignore) {
 				}
+				Integer notificationColor = resources.getNotificationColor();
+				if (notificationColor != null) {
+					notificationBuilder.setColor(notificationColor);
+				}
+				Notification notification = notificationBuilder.build();
+				notification.defaults = 0;
+				if (useSound) {
+					int sound = resources.getSound();
+					if (sound == 0) {
+						notification.defaults |= Notification.DEFAULT_SOUND;
+					} else {
+						Uri soundUri = Uri.parse("android.resource://" + applicationContext.getPackageName()  + "/" + sound);
+						notification.sound = soundUri;
+					}
+				}
+				if ("DEFAULT".equalsIgnoreCase(ledColor)) {
+					notification.defaults |= Notification.DEFAULT_LIGHTS;
+				} else if (!TextUtils.isEmpty(ledColor)) {
+					try {
+						Integer argb = parseArgb(ledColor);
+						notification.flags |= Notification.FLAG_SHOW_LIGHTS;
+						if (argb != null) {
+							notification.ledARGB = argb;
+						}
+						notification.ledOnMS = 1000;
+						notification.ledOffMS = 1000;
+					} catch (Exception ignore) {
+					}
+				}
+				if (vibrationMilliseconds > 0) {
+					long[] vibratePattern = {0, vibrationMilliseconds, vibrationMilliseconds};
+					notification.vibrate = vibratePattern;
+				}
+				return notification;
 			}
-			if (vibrationMilliseconds > 0) {
-				long[] vibratePattern = {0, vibrationMilliseconds, vibrationMilliseconds};
-				notification.vibrate = vibratePattern;
-			}
-			Log.d("GcmIntentService", "#####notificationManager.notify");
-			notificationManager.notify(0, notification);
-		} else {
-			Log.w("GcmIntentService", "#####unable to get the NotificationManager");
+		});
+	}
+	/**
+	 * Gets the name of the group which the message belongs to in the notification area.
+	 * The messages in the same group are shown as one notification.
+	 * The default implementation groups 'Push to User' notifications by topic, and the others by MessageType.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	protected String getNotificationGroup(PushMessage message) {
+		MessageType type = this.classify(message);
+		if (type == MessageType.PUSH_TO_USER) {
+			return type.name() + ":" + message.getString("topic");
 		}
+		return type.name();
 	}
 	/**
 	 * Convert string  value which indicates color into the integer value.
@@ -337,36 +861,31 @@ public abstract class AbstractGcmIntentService extends IntentService {
 	 * @return
 	 */
 	protected Integer parseArgb(String argbString) {
-		try {
-			int argb = (int)Long.parseLong(argbString.replaceFirst("#", ""), 16);
-			return argb;
-		} catch (Exception ignore) {
-			return null;
+		return NotificationFormat.parseArgb(argbString);
+	}
+	/**
+	 * The text is rendered with the fields of the message, so the JSON of the message is not built
+	 * unless {@link #isJsonCallbackEnabled()} returns true, {@link #getText(JSONObject, String, String)} is called in that case.
+	 * 
+	 * @param message
+	 * @param text literal, JSONPath or template, see {@link NotificationTemplate}.
+	 * @param fallback
+	 * @return
+	 */
+	protected String getText(PushMessage message, String text, String fallback) {
+		if (this.isJsonCallbackEnabled()) {
+			return this.getText(message.getJson(), text, fallback);
 		}
+		return NotificationTemplate.compile(text).render(message, fallback);
 	}
 	/**
 	 * @param json
-	 * @param text literal or JSONPath
+	 * @param text literal, JSONPath or template, see {@link NotificationTemplate}.
 	 * @param fallback
 	 * @return
 	 */
 	protected String getText(JSONObject json, String text, String fallback) {
-		try {
-			if (TextUtils.isEmpty(text)) {
-				return fallback;
-			} else if (JsonPath.isJsonQuery(text)) {
-				String value = JsonPath.query(json, text);
-				if (value == null) {
-					return fallback;
-				} else {
-					return value;
-				}
-			} else {
-				return text;
-			}
-		} catch (Exception ignore) {
-			return fallback;
-		}
+		return NotificationFormat.getText(json, text, fallback);
 	}
 	protected enum MessageType {
 		/**
@@ -382,19 +901,40 @@ public abstract class AbstractGcmIntentService extends IntentService {
 		 */
 		DIRECT_PUSH
 	}
-	protected static final String[] PUSH_TO_APP_FIELDS = {"bucketType", "bucketID", "objectID", "modifiedAt"};
-	protected static final String[] PUSH_TO_USER_FIELDS = {"topic"};
+	protected static final String[] PUSH_TO_APP_FIELDS = PushMessageClassifier.PUSH_TO_APP_FIELDS;
+	protected static final String[] PUSH_TO_USER_FIELDS = PushMessageClassifier.PUSH_TO_USER_FIELDS;
+	protected static final String[] DEFAULT_DEDUPLICATION_KEYS = {"google.message_id"};
 	protected MessageType getMessageType(JSONObject message) {
-		for (String field : PUSH_TO_APP_FIELDS) {
-			if (message.has(field)) {
+		return toMessageType(PushMessageClassifier.classify(message));
+	}
+	/**
+	 * Classifies the message by {@link #getMessageType(PushMessage)},
+	 * or by {@link #getMessageType(JSONObject)} if {@link #isJsonCallbackEnabled()} returns true.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	protected final MessageType classify(PushMessage message) {
+		return this.isJsonCallbackEnabled() ? this.getMessageType(message.getJson()) : this.getMessageType(message);
+	}
+	/**
+	 * Classifies the message by the names of its fields.
+	 * This doesn't build the JSON of the message.
+	 * 
+	 * @param message
+	 * @return
+	 */
+	protected MessageType getMessageType(PushMessage message) {
+		return toMessageType(PushMessageClassifier.classify(message));
+	}
+	private static MessageType toMessageType(PushMessageClassifier.Kind kind) {
+		switch (kind) {
+			case PUSH_TO_APP:
 				return MessageType.PUSH_TO_APP;
-			}
-		}
-		for (String field : PUSH_TO_USER_FIELDS) {
-			if (message.has(field)) {
+			case PUSH_TO_USER:
 				return MessageType.PUSH_TO_USER;
-			}
+			default:
+				return MessageType.DIRECT_PUSH;
 		}
-		return MessageType.DIRECT_PUSH;
 	}
 }
@@ -0,0 +1,202 @@
+package com.kii.cloud.unity;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Implementation of GcmIntentService which handles push notifications concurrently.
+ * GcmIntentService handles push notifications one at a time, so a slow message delays all the messages behind it.
+ * This service handles them on a bounded thread pool, the messages are taken in order of priority of MessageType
+ * (DIRECT_PUSH, PUSH_TO_USER and then PUSH_TO_APP by default).
+ * The messages which have the same ordering key (e.g. the same topic) are handled one at a time in the received order.
+ * The waiting messages which have the same coalescing key are collapsed to the newest one as well as GcmIntentService.
+ * 
+ * You can use this class instead of GcmIntentService by replacing the service in AndroidManifest.xml,
+ * or by changing the super class of your subclass of GcmIntentService.
+ */
+public class ConcurrentGcmIntentService extends GcmIntentService {
+
+	private static final int DEFAULT_MAX_CONCURRENCY = 3;
+
+	private static ThreadPoolExecutor executor;
+	/**
+	 * Tasks which are waiting for the preceding task with the same ordering key.
+	 * A key is in this map while a task with the key is queued or running.
+	 */
+	private static final Map<String, Queue<Task>> WAITING_TASKS = new HashMap<String, Queue<Task>>();
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private volatile int lastStartId;
+
+	public ConcurrentGcmIntentService() {
+		super();
+	}
+	@Override
+	public int onStartCommand(final Intent intent, int flags, int startId) {
+		this.lastStartId = startId;
+		if (intent == null || this.handleNotificationIntent(intent)) {
+			this.stopIfIdle(startId);
+			return START_NOT_STICKY;
+		}
+		Bundle extras = intent.getExtras();
+		PushMessage message = new PushMessage(extras == null ? new Bundle() : extras);
+		MessageType type = this.classify(message);
+		final Task task = new Task(intent, this.getPriority(type), this.getOrderingKey(type, message));
+		this.pendingCount.incrementAndGet();
+		// The task is queued after the wake lock is released, so the waiting messages don't keep the device awake.
+		this.enqueueDurably(intent, new Runnable() {
+			public void run() {
+				enqueue(getExecutor(), task);
+			}
+		});
+		return START_NOT_STICKY;
+	}
+	/**
+	 * Gets the priority of the message. The message which has the higher priority is handled earlier.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	protected int getPriority(MessageType type) {
+		switch (type) {
+			case DIRECT_PUSH:
+				return 2;
+			case PUSH_TO_USER:
+				return 1;
+			default:
+				return 0;
+		}
+	}
+	/**
+	 * Gets the key of the message to keep the order. The messages which have the same key are handled in the received order.
+	 * The default implementation uses the topic for 'Push to User', the bucket for 'Push to App' and MessageType for 'Direct Push'.
+	 * 
+	 * @param type
+	 * @param message
+	 * @return
+	 */
+	protected String getOrderingKey(MessageType type, PushMessage message) {
+		switch (type) {
+			case PUSH_TO_USER:
+				return type.name() + ":" + message.getString("topic");
+			case PUSH_TO_APP:
+				return type.name() + ":" + message.getString("bucketType") + ":" + message.getString("bucketID");
+			default:
+				return type.name();
+		}
+	}
+	/**
+	 * Gets the maximum number of threads which handle push notifications.
+	 * This is used when the thread pool is created at the first push notification in the process.
+	 * 
+	 * @return
+	 */
+	protected int getMaxConcurrency() {
+		return DEFAULT_MAX_CONCURRENCY;
+	}
+	private ThreadPoolExecutor getExecutor() {
+		synchronized (ConcurrentGcmIntentService.class) {
+			if (executor == null) {
+				int concurrency = Math.max(1, this.getMaxConcurrency());
+				executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(final Runnable r) {
+						return new Thread(new Runnable() {
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								r.run();
+							}
+						}, "KiiGcmIntentService-" + this.count.incrementAndGet());
+					}
+				});
+				executor.allowCoreThreadTimeOut(true);
+			}
+			return executor;
+		}
+	}
+	private static void enqueue(ThreadPoolExecutor executor, Task task) {
+		synchronized (WAITING_TASKS) {
+			Queue<Task> waiting = WAITING_TASKS.get(task.orderingKey);
+			if (waiting != null) {
+				waiting.add(task);
+				return;
+			}
+			WAITING_TASKS.put(task.orderingKey, new ArrayDeque<Task>());
+		}
+		executor.execute(task);
+	}
+	private static void complete(ThreadPoolExecutor executor, Task task) {
+		Task next;
+		synchronized (WAITING_TASKS) {
+			Queue<Task> waiting = WAITING_TASKS.get(task.orderingKey);
+			next = waiting == null ? null : waiting.poll();
+			if (next == null) {
+				WAITING_TASKS.remove(task.orderingKey);
+			}
+		}
+		if (next != null) {
+			executor.execute(next);
+		}
+	}
+	private void stopIfIdle(final int startId) {
+		this.handler.post(new Runnable() {
+			public void run() {
+				if (pendingCount.get() == 0) {
+					// stopSelf does nothing if a newer start request has been delivered.
+					stopSelf(startId);
+				}
+			}
+		});
+	}
+	private class Task implements Runnable, Comparable<Task> {
+		final Intent intent;
+		final int priority;
+		final String orderingKey;
+		final long sequence = SEQUENCE.incrementAndGet();
+		Task(Intent intent, int priority, String orderingKey) {
+			this.intent = intent;
+			this.priority = priority;
+			this.orderingKey = orderingKey;
+		}
+		public void run() {
+			try {
+				onHandleIntent(this.intent);
+			} catch (RuntimeException e) {
+				Log.e("GcmIntentService", "#####Failed to handle the push notification ex=" + e.getMessage(), e);
+				PushMetrics.getInstance().increment(PushMetrics.Counter.FAILED);
+			} finally {
+				// The wake lock is released before the task is queued, this is the last resort even if an Error is thrown.
+				if (this.intent.hasExtra(GCMBroadcastReceiver.EXTRA_WAKE_LOCK_ID)) {
+					GCMBroadcastReceiver.completeWakefulIntent(this.intent);
+				}
+				complete(getExecutor(), this);
+				if (pendingCount.decrementAndGet() == 0) {
+					stopIfIdle(lastStartId);
+				}
+			}
+		}
+		public int compareTo(Task another) {
+			if (this.priority != another.priority) {
+				return this.priority > another.priority ? -1 : 1;
+			}
+			return this.sequence < another.sequence ? -1 : (this.sequence == another.sequence ? 0 : 1);
+		}
+	}
+}
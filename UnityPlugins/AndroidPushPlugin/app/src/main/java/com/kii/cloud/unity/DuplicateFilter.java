@@ -0,0 +1,227 @@
+package com.kii.cloud.unity;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Filter which drops the push messages which have already been received.
+ * GCM may redeliver a message, and Kii Cloud may send the same bucket event more than once.
+ * The filter remembers the keys of the recent messages in a bounded, time windowed LRU set.
+ * A key is remembered by {@link #record(String, long)} after the message is handled,
+ * so a message which is replayed because the process was killed while handling it is not dropped.
+ * The set is persisted to an append-only file, so it survives restarts of the process.
+ * The new keys are appended in the background in a batch, so the handling thread doesn't write the file for each message.
+ * Call {@link #flushInBackground()} to write the pending keys without waiting for the delay, e.g. when the service is destroyed,
+ * or {@link #flush()} to write them synchronously.
+ */
+public class DuplicateFilter {
+
+	private static final String FILE_NAME = "KiiPushUnityPlugin_dedup";
+	private static final int MAX_KEYS = 512;
+	private static final long WINDOW_MILLIS = 10 * 60 * 1000;
+	private static final long PERSIST_DELAY_MILLIS = 1000;
+
+	private static DuplicateFilter INSTANCE;
+
+	/**
+	 * Get instance of DuplicateFilter.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	public static synchronized DuplicateFilter getInstance(Context context) {
+		if (INSTANCE == null) {
+			INSTANCE = new DuplicateFilter(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+		}
+		return INSTANCE;
+	}
+
+	private final File file;
+	private final Map<String, Long> seenKeys = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return this.size() > MAX_KEYS;
+		}
+	};
+	private boolean loaded = false;
+	private int appendedLines = 0;
+	/**
+	 * Lines which are not written to the file yet.
+	 */
+	private List<String> pendingLines = new ArrayList<String>();
+	private Handler handler;
+	private boolean persistScheduled = false;
+	private final Runnable persistTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+	/**
+	 * Held while writing the file, so that the flushes on the different threads don't interleave.
+	 */
+	private final Object writeLock = new Object();
+
+	DuplicateFilter(File file) {
+		this.file = file;
+	}
+	/**
+	 * Checks if the message which has the key was handled within the window.
+	 * 
+	 * @param key
+	 * @param now
+	 * @return true if the message is a duplicate.
+	 */
+	public synchronized boolean isDuplicate(String key, long now) {
+		this.load(now);
+		Long seenAt = this.seenKeys.get(key);
+		if (seenAt != null && now - seenAt < WINDOW_MILLIS) {
+			return true;
+		}
+		return false;
+	}
+	/**
+	 * Remembers the key of the message which has been handled.
+	 * 
+	 * @param key
+	 * @param now
+	 */
+	public synchronized void record(String key, long now) {
+		this.load(now);
+		this.seenKeys.put(key, now);
+		this.pendingLines.add(now + "\t" + key + "\n");
+		this.schedulePersist();
+	}
+	/**
+	 * Writes the pending keys to the file on the calling thread.
+	 */
+	public void flush() {
+		synchronized (this.writeLock) {
+			List<String> lines;
+			boolean compact;
+			synchronized (this) {
+				this.persistScheduled = false;
+				if (this.handler != null) {
+					this.handler.removeCallbacks(this.persistTask);
+				}
+				if (this.pendingLines.isEmpty()) {
+					return;
+				}
+				compact = this.appendedLines >= MAX_KEYS * 2;
+				if (compact) {
+					// Rewrites the file with the current keys when it grows too much.
+					lines = new ArrayList<String>(this.seenKeys.size());
+					long now = System.currentTimeMillis();
+					for (Iterator<Map.Entry<String, Long>> i = this.seenKeys.entrySet().iterator(); i.hasNext();) {
+						Map.Entry<String, Long> entry = i.next();
+						if (now - entry.getValue() >= WINDOW_MILLIS) {
+							i.remove();
+							continue;
+						}
+						lines.add(entry.getValue() + "\t" + entry.getKey() + "\n");
+					}
+					this.appendedLines = lines.size();
+				} else {
+					lines = this.pendingLines;
+					this.appendedLines += lines.size();
+				}
+				this.pendingLines = new ArrayList<String>();
+			}
+			this.write(lines, !compact);
+		}
+	}
+	/**
+	 * Writes the pending keys on the background thread without waiting for the delay.
+	 * This returns immediately, so it can be called on the main thread.
+	 */
+	public synchronized void flushInBackground() {
+		if (this.pendingLines.isEmpty()) {
+			return;
+		}
+		this.schedulePersist();
+		this.handler.removeCallbacks(this.persistTask);
+		this.handler.post(this.persistTask);
+	}
+	private void load(long now) {
+		if (this.loaded) {
+			return;
+		}
+		this.loaded = true;
+		if (!this.file.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab <= 0) {
+					continue;
+				}
+				try {
+					long seenAt = Long.parseLong(line.substring(0, tab));
+					if (now - seenAt < WINDOW_MILLIS) {
+						this.seenKeys.put(line.substring(tab + 1), seenAt);
+					}
+				} catch (NumberFormatException ignore) {
+				}
+				this.appendedLines++;
+			}
+		} catch (IOException e) {
+			Log.w("DuplicateFilter", "#####Failed to load the received keys ex=" + e.getMessage());
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+	private void write(List<String> lines, boolean append) {
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(this.file, append), "UTF-8");
+			for (String line : lines) {
+				writer.write(line);
+			}
+		} catch (IOException e) {
+			Log.w("DuplicateFilter", "#####Failed to persist the received keys ex=" + e.getMessage());
+		} finally {
+			closeQuietly(writer);
+		}
+	}
+	private void schedulePersist() {
+		if (this.persistScheduled) {
+			return;
+		}
+		if (this.handler == null) {
+			HandlerThread thread = new HandlerThread("KiiDuplicateFilter");
+			thread.start();
+			this.handler = new Handler(thread.getLooper());
+		}
+		this.persistScheduled = true;
+		this.handler.postDelayed(this.persistTask, PERSIST_DELAY_MILLIS);
+	}
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.kii.cloud.unity;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.view.Window;
+
+/**
+ * Tracks whether the application is on foreground by the activity lifecycle callbacks.
+ * The tracker keeps the started activities in this process, so it can answer without asking ActivityManager.
+ * The tracker is available only after it is registered, KiiPushUnityPlugin registers it when Unity binds the listener game object.
+ * The tracker also starts the group of the notification over when the activity is opened from the notification.
+ */
+public class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+
+	private static final ForegroundTracker INSTANCE = new ForegroundTracker();
+
+	/**
+	 * Get instance of ForegroundTracker.
+	 * 
+	 * @return
+	 */
+	public static ForegroundTracker getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * The activities between onStart and onStop, they are weakly referenced so that the tracker never leaks them.
+	 */
+	private final Set<Activity> startedActivities = Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>());
+	private volatile boolean registered = false;
+
+	private ForegroundTracker() {
+	}
+	/**
+	 * Registers the tracker from the application.
+	 * Call this from Application.onCreate, no activity is started at that time.
+	 * 
+	 * @param application
+	 */
+	public synchronized void register(Application application) {
+		if (this.registered) {
+			return;
+		}
+		application.registerActivityLifecycleCallbacks(this);
+		this.registered = true;
+		if (PushLog.isDebugEnabled()) {
+			Log.d("ForegroundTracker", "#####registered from application");
+		}
+	}
+	/**
+	 * Registers the tracker from the activity which is currently on foreground.
+	 * The lifecycle callbacks are called on the main thread, so the tracker is registered on the main thread
+	 * and the activity is counted as started only if its window is visible at that time.
+	 * This method can be called from any thread, e.g. the thread of Unity.
+	 * 
+	 * @param activity
+	 */
+	public void register(final Activity activity) {
+		if (this.registered || activity == null) {
+			return;
+		}
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			this.registerOnMainThread(activity);
+		} else {
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					ForegroundTracker.this.registerOnMainThread(activity);
+				}
+			});
+		}
+	}
+	private synchronized void registerOnMainThread(Activity activity) {
+		if (this.registered) {
+			return;
+		}
+		activity.getApplication().registerActivityLifecycleCallbacks(this);
+		// The window of the activity is visible between onStart and onStop.
+		Window window = activity.getWindow();
+		if (!activity.isFinishing() && window != null && window.getDecorView().getWindowVisibility() == View.VISIBLE) {
+			this.startedActivities.add(activity);
+		}
+		this.registered = true;
+		resetOpenedNotificationGroup(activity);
+		if (PushLog.isDebugEnabled()) {
+			Log.d("ForegroundTracker", "#####registered from activity");
+		}
+	}
+	/**
+	 * Checks if the tracker has been registered.
+	 * 
+	 * @return
+	 */
+	public boolean isRegistered() {
+		return this.registered;
+	}
+	/**
+	 * Checks if the application is on foreground.
+	 * The result is meaningful only when the tracker has been registered.
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isForeground() {
+		return !this.startedActivities.isEmpty();
+	}
+	@Override
+	public synchronized void onActivityStarted(Activity activity) {
+		this.startedActivities.add(activity);
+	}
+	@Override
+	public synchronized void onActivityStopped(Activity activity) {
+		// The activity which was stopped before the tracker was registered is not in the set.
+		this.startedActivities.remove(activity);
+	}
+	@Override
+	public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+	}
+	@Override
+	public void onActivityResumed(Activity activity) {
+		resetOpenedNotificationGroup(activity);
+	}
+	@Override
+	public void onActivityPaused(Activity activity) {
+	}
+	@Override
+	public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+	}
+	@Override
+	public void onActivityDestroyed(Activity activity) {
+	}
+	/**
+	 * Starts the group of the notification over if the activity is opened from the notification.
+	 * The extra is removed, so the group is not reset again when the activity is resumed next time.
+	 * 
+	 * @param activity
+	 */
+	private static void resetOpenedNotificationGroup(Activity activity) {
+		Intent intent = activity.getIntent();
+		String group = intent == null ? null : intent.getStringExtra(AbstractGcmIntentService.EXTRA_NOTIFICATION_GROUP);
+		if (group != null) {
+			intent.removeExtra(AbstractGcmIntentService.EXTRA_NOTIFICATION_GROUP);
+			NotificationCoordinator.getInstance().reset(group);
+		}
+	}
+}
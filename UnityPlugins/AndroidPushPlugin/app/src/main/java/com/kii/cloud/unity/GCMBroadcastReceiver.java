@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
@@ -17,26 +18,81 @@ import android.util.Log;
  */
 public class GCMBroadcastReceiver extends WakefulBroadcastReceiver {
 	
+	/**
+	 * Name of the extra which WakefulBroadcastReceiver adds to identify the wake lock.
+	 */
+	static final String EXTRA_WAKE_LOCK_ID = "android.support.content.wakelockid";
+	
+	private static final String KEY_INTENT_SERVICE = "INTENT_SERVICE";
+	private static final String KEY_INTENT_SERVICE_APP_VERSION = "INTENT_SERVICE_APP_VERSION";
+	
+	/**
+	 * The IntentService which is resolved in this process.
+	 * The result never changes until the application is updated, so it is resolved only once.
+	 */
+	private static ComponentName intentService;
+	
 	@Override
 	public void onReceive(Context context, Intent intent) {
-		Log.d("GCMBroadcastReceiver", "#####onReceive");
+		if (PushLog.isDebugEnabled()) {
+			Log.d("GCMBroadcastReceiver", "#####onReceive");
+		}
+		PushMetrics metrics = PushMetrics.getInstance();
+		long start = metrics.start();
+		metrics.increment(PushMetrics.Counter.RECEIVED);
+		// The service removes this extra before it reads the message.
+		intent.putExtra(PushMetrics.EXTRA_RECEIVED_AT, start);
 		ComponentName comp = getIntentService(context);
 		startWakefulService(context, (intent.setComponent(comp)));
 		setResultCode(Activity.RESULT_OK);
+		metrics.record(PushMetrics.Stage.RECEIVE, start);
 	}
-	private ComponentName getIntentService(Context context) {
+	private static synchronized ComponentName getIntentService(Context context) {
+		if (intentService == null) {
+			intentService = loadIntentService(context);
+		}
+		return intentService;
+	}
+	/**
+	 * Gets the IntentService which has been resolved by the previous process.
+	 * The resolved IntentService is stored with the version of the application, and resolved again after the application is updated.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	private static ComponentName loadIntentService(Context context) {
+		String version = getAppVersion(context);
+		SharedPreferences preference = KiiPushUnityPlugin.getInstance().getSharedPreference(context);
+		if (version != null && version.equals(preference.getString(KEY_INTENT_SERVICE_APP_VERSION, null))) {
+			ComponentName stored = ComponentName.unflattenFromString(preference.getString(KEY_INTENT_SERVICE, ""));
+			if (stored != null) {
+				return stored;
+			}
+		}
+		ComponentName resolved = resolveIntentService(context);
+		if (version != null) {
+			preference.edit()
+				.putString(KEY_INTENT_SERVICE, resolved.flattenToString())
+				.putString(KEY_INTENT_SERVICE_APP_VERSION, version)
+				.apply();
+		}
+		return resolved;
+	}
+	private static ComponentName resolveIntentService(Context context) {
 		try {
 			PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), PackageManager.GET_SERVICES);
 			if (info.services != null) {
-				try {
-					for (ServiceInfo service : info.services) {
+				for (ServiceInfo service : info.services) {
+					try {
 						Class<?> serviceClass = Class.forName(service.name);
 						if (AbstractGcmIntentService.class.isAssignableFrom(serviceClass)) {
-							Log.d("GCMBroadcastReceiver", "found the IntentService. package=" + service.packageName + " class=" + service.name);
+							if (PushLog.isDebugEnabled()) {
+								Log.d("GCMBroadcastReceiver", "found the IntentService. package=" + service.packageName + " class=" + service.name);
+							}
 							return new ComponentName(service.packageName, service.name);
 						}
+					} catch (Exception ignore) {
 					}
-				} catch (Exception ignore) {
 				}
 			}
 		} catch (Exception ignore) {
@@ -44,4 +100,19 @@ public class GCMBroadcastReceiver extends WakefulBroadcastReceiver {
 		Log.w("GCMBroadcastReceiver", "cannot find the IntentService in AndroidManifest.xml try to use defalut. package=" + context.getPackageName() + " class=" + GcmIntentService.class.getName());
 		return new ComponentName(context.getPackageName(), GcmIntentService.class.getName());
 	}
+	/**
+	 * Gets the version of the application which identifies the installed APK.
+	 * The last update time is included, because the version code is often unchanged while developing.
+	 * 
+	 * @param context
+	 * @return null if the version is unavailable.
+	 */
+	static String getAppVersion(Context context) {
+		try {
+			PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+			return info.versionCode + ":" + info.lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		}
+	}
 }
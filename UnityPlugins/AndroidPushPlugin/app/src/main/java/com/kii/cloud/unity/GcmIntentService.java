@@ -1,24 +1,74 @@
 package com.kii.cloud.unity;
 
+import java.util.EnumMap;
+import java.util.Map;
+
 import org.json.JSONObject;
 
 import android.content.Context;
+import android.content.res.Configuration;
 import android.util.Log;
 
 /**
  * Default implementation of AbstractGcmIntentService.
  * You can change a behavior when a push notification is received by edit the configuration file /Plugins/Android/res/values/kii-push-config.xml. 
+ * By default the JSONObject versions of the callbacks are called as before, so the subclasses which override them keep working.
+ * If kii_push_lazyMessage is true in the configuration file, this class handles the message without building its JSON unless it is needed,
+ * and the JSONObject versions of the callbacks are not called.
  * 
  * @author noriyoshi.fukuzaki@kii.com
  */
 public class GcmIntentService extends AbstractGcmIntentService {
 
+	/**
+	 * Configurations that are resolved from resource file, these are shared in the process.
+	 */
+	private static final Map<MessageType, NotificationAreaConfiguration> CONFIGURATIONS = new EnumMap<MessageType, NotificationAreaConfiguration>(MessageType.class);
+	/**
+	 * The device configuration which CONFIGURATIONS were resolved with.
+	 */
+	private static Configuration resolvedConfiguration;
+	/**
+	 * True if the JSONObject versions of the callbacks are bypassed, see kii_push_lazyMessage.
+	 */
+	private boolean lazyMessage = false;
+
 	public GcmIntentService() {
 		super();
 	}
 	@Override
+	public void onCreate() {
+		super.onCreate();
+		this.lazyMessage = this.getResouceValueAsBoolean("kii_push_lazyMessage");
+	}
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+		super.onConfigurationChanged(newConfig);
+		invalidateNotificationConfigurations();
+	}
+	/**
+	 * Returns false only if kii_push_lazyMessage is true in the configuration file.
+	 * Subclasses which override the JSONObject versions of the callbacks must not set kii_push_lazyMessage.
+	 */
+	@Override
+	protected boolean isJsonCallbackEnabled() {
+		return !this.lazyMessage;
+	}
+	@Override
+	protected boolean onHandlePushMessage(Context context, MessageType messageType, PushMessage receivedMessage, boolean isForeground) {
+		if (this.isJsonCallbackEnabled()) {
+			return super.onHandlePushMessage(context, messageType, receivedMessage, isForeground);
+		}
+		return this.handlePushMessage(context, messageType, receivedMessage, isForeground);
+	}
+	@Override
 	protected boolean onHandlePushMessage(Context context, MessageType messageType, JSONObject receivedMessage, boolean isForeground) {
-		Log.d("GcmIntentService", "#####onHandlePushMessage");
+		return this.handlePushMessage(context, messageType, this.getHandlingMessage(receivedMessage), isForeground);
+	}
+	private boolean handlePushMessage(Context context, MessageType messageType, PushMessage receivedMessage, boolean isForeground) {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("GcmIntentService", "#####onHandlePushMessage");
+		}
 		// Get configuration from resource file.
 		NotificationAreaConfiguration config = this.getNotificationConfiguration(messageType);
 		if (config.isShowInNotificationArea() && !isForeground) {
@@ -35,12 +85,44 @@ public class GcmIntentService extends AbstractGcmIntentService {
 		return true;
 	}
 	/**
-	 * Gets configuration of behavior when received push notification from resource file.
+	 * Discards the cached configurations.
+	 * They are resolved from resource file again when the next push notification is received.
+	 */
+	protected static void invalidateNotificationConfigurations() {
+		synchronized (CONFIGURATIONS) {
+			CONFIGURATIONS.clear();
+			resolvedConfiguration = null;
+		}
+	}
+	/**
+	 * Gets configuration of behavior when received push notification.
+	 * The configuration is resolved from resource file once and cached until the device configuration (e.g. locale) is changed.
 	 * 
 	 * @param type
 	 * @return
 	 */
 	private NotificationAreaConfiguration getNotificationConfiguration(MessageType type) {
+		Configuration current = this.getResources().getConfiguration();
+		synchronized (CONFIGURATIONS) {
+			if (resolvedConfiguration == null || !resolvedConfiguration.equals(current)) {
+				CONFIGURATIONS.clear();
+				resolvedConfiguration = new Configuration(current);
+			}
+			NotificationAreaConfiguration config = CONFIGURATIONS.get(type);
+			if (config == null) {
+				config = this.resolveNotificationConfiguration(type);
+				CONFIGURATIONS.put(type, config);
+			}
+			return config;
+		}
+	}
+	/**
+	 * Resolves configuration of behavior when received push notification from resource file.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	private NotificationAreaConfiguration resolveNotificationConfiguration(MessageType type) {
 		String prefix = null;
 		switch (type) {
 			case PUSH_TO_APP:
@@ -61,19 +143,21 @@ public class GcmIntentService extends AbstractGcmIntentService {
 		String notificationTicker = this.getResouceValueAsString(prefix + "notificationTicker");
 		String notificationText = this.getResouceValueAsString(prefix + "notificationText");
 
-		Log.d("GcmIntentService", "#####MessageType=" + type.name());
-		Log.d("GcmIntentService", "#####showInNotificationArea=" + showInNotificationArea);
-		Log.d("GcmIntentService", "#####useSound=" + useSound);
-		Log.d("GcmIntentService", "#####ledColor=" + ledColor);
-		Log.d("GcmIntentService", "#####vibrationMilliseconds=" + vibrationMilliseconds);
-		Log.d("GcmIntentService", "#####notificationTitle=" + notificationTitle);
-		Log.d("GcmIntentService", "#####notificationTicker=" + notificationTicker);
-		Log.d("GcmIntentService", "#####notificationText=" + notificationText);
+		if (PushLog.isDebugEnabled()) {
+			Log.d("GcmIntentService", "#####MessageType=" + type.name());
+			Log.d("GcmIntentService", "#####showInNotificationArea=" + showInNotificationArea);
+			Log.d("GcmIntentService", "#####useSound=" + useSound);
+			Log.d("GcmIntentService", "#####ledColor=" + ledColor);
+			Log.d("GcmIntentService", "#####vibrationMilliseconds=" + vibrationMilliseconds);
+			Log.d("GcmIntentService", "#####notificationTitle=" + notificationTitle);
+			Log.d("GcmIntentService", "#####notificationTicker=" + notificationTicker);
+			Log.d("GcmIntentService", "#####notificationText=" + notificationText);
+		}
 
 		return new NotificationAreaConfiguration(showInNotificationArea, useSound, ledColor, vibrationMilliseconds, notificationTitle, notificationTicker, notificationText);
 	}
 	/**
-	 * Configuration class for showing notification area.
+	 * Immutable configuration class for showing notification area.
 	 */
 	private static class NotificationAreaConfiguration {
 		private final boolean showInNotificationArea;
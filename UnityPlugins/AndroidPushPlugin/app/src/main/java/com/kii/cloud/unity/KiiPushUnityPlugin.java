@@ -1,10 +1,17 @@
 package com.kii.cloud.unity;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
@@ -24,22 +31,59 @@ public class KiiPushUnityPlugin {
 	private static KiiPushUnityPlugin INSTANCE = new KiiPushUnityPlugin();
 	private static Handler handler = new Handler(Looper.getMainLooper());
 	
+	private static final String KEY_REGISTRATION_ID = "REGISTRATION_ID";
+	private static final String KEY_REGISTRATION_SENDER_ID = "REGISTRATION_SENDER_ID";
+	private static final String KEY_REGISTRATION_APP_VERSION = "REGISTRATION_APP_VERSION_KEY";
+	private static final int MAX_REGISTER_ATTEMPTS = 5;
+	private static final long INITIAL_BACKOFF_MILLIS = 2000;
+	private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+	private static final UnityMessageSender UNITY_PLAYER_SENDER = new UnityMessageSender() {
+		public void sendMessage(String gameObjectName, String methodName, String message) {
+			UnityPlayer.UnitySendMessage(gameObjectName, methodName, message);
+		}
+	};
+	
 	/**
 	 * Get instance of KiiPushUnityPlugin.
 	 * 
 	 * @return
 	 */
 	public static KiiPushUnityPlugin getInstance() {
-		Log.d("KiiPushUnityPlugin", "#####KiiPushUnityPlugin.getInstance()");
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####KiiPushUnityPlugin.getInstance()");
+		}
 		return INSTANCE;
 	}
 	
 	private String listenerGameObjectName;
 	private String senderId;
 	private SharedPreferences sharedPreference;
+	private GoogleCloudMessaging gcm;
+	/**
+	 * The registration which is in progress, null if there is no registration in progress.
+	 */
+	private Registration registration;
+	private PushMessageWriter messageWriter;
+	private String lastMessage;
+	private boolean lastMessageLoaded = false;
+	private volatile UnityMessageSender unityMessageSender = UNITY_PLAYER_SENDER;
+	private boolean batchDeliveryEnabled = false;
+	private long batchWindowMillis;
+	private int batchMaxCount;
+	private final List<String> batchedMessages = new ArrayList<String>();
+	private final SubscriptionTable subscriptions = new SubscriptionTable();
+	private volatile BucketChangeAggregator bucketChangeAggregator;
+	private volatile long bucketChangeWindowMillis;
+	private final Runnable deliverBatchTask = new Runnable() {
+		public void run() {
+			deliverBatch();
+		}
+	};
 	
 	private KiiPushUnityPlugin() {
-		Log.d("KiiPushUnityPlugin", "#####KiiPushUnityPlugin constractor");
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####KiiPushUnityPlugin constractor");
+		}
 	}
 	/**
 	 * Get game objectname which is bound the this code.
@@ -58,8 +102,12 @@ public class KiiPushUnityPlugin {
 	 * @param listenerGameObjectName
 	 */
 	public void setListenerGameObjectName(String listenerGameObjectName) {
-		Log.d("KiiPushUnityPlugin", "#####setListenerGameObjectName " + listenerGameObjectName);
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####setListenerGameObjectName " + listenerGameObjectName);
+		}
 		this.listenerGameObjectName = listenerGameObjectName;
+		// Unity calls this method on its thread while its activity is on foreground, the tracker is registered on the main thread.
+		ForegroundTracker.getInstance().register(UnityPlayer.currentActivity);
 	}
 	/**
 	 * Get sender id.
@@ -75,7 +123,9 @@ public class KiiPushUnityPlugin {
 	 * @param senderId
 	 */
 	public void setSenderId(String senderId) {
-		Log.d("KiiPushUnityPlugin", "#####setSenderId " + senderId);
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####setSenderId " + senderId);
+		}
 		this.senderId = senderId;
 	}
 	
@@ -86,19 +136,247 @@ public class KiiPushUnityPlugin {
 	 * @param message
 	 */
 	public void sendPushNotification(Context context, String message) {
-		Log.d("KiiPushUnityPlugin", "#####sendPushNotification " + message);
-		Editor editor = this.getSharedPreference(context).edit();
-		editor.putString("LAST_MESSAGE", message);
-		editor.commit();
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####sendPushNotification " + message);
+		}
+		this.storeMessage(context, message);
+		synchronized (this.batchedMessages) {
+			if (this.batchDeliveryEnabled) {
+				this.batchedMessages.add(message);
+				if (this.batchedMessages.size() >= this.batchMaxCount) {
+					handler.removeCallbacks(this.deliverBatchTask);
+					handler.post(this.deliverBatchTask);
+				} else if (this.batchedMessages.size() == 1) {
+					handler.postDelayed(this.deliverBatchTask, this.batchWindowMillis);
+				}
+				return;
+			}
+		}
 		this.UnitySendMessage(this.getListenerGameObjectName(), "OnPushNotificationsReceived", message);
 	}
+	/**
+	 * Send a push notification to the GameObjects which subscribe it.
+	 * If the aggregation of bucket changes is enabled, 'Push to App' messages are aggregated instead,
+	 * see {@link #enableBucketChangeAggregation(long, int)}.
+	 * If there is no subscription, the message is sent to the listener GameObject by {@link #sendPushNotification(Context, String)}.
+	 * Otherwise the message is sent only to the subscribers without batching, and the message which nobody subscribes is not sent to the Unity layer.
+	 * The message is stored in either case.
+	 * 
+	 * @param context
+	 * @param message
+	 * @param messageType PUSH_TO_APP, PUSH_TO_USER or DIRECT_PUSH.
+	 */
+	public void sendPushNotification(Context context, PushMessage message, String messageType) {
+		final BucketChangeAggregator aggregator = this.bucketChangeAggregator;
+		if (aggregator != null && PushMessageClassifier.Kind.PUSH_TO_APP.name().equals(messageType)) {
+			this.storeMessage(context, message.getPayload());
+			PushMetrics.getInstance().increment(PushMetrics.Counter.AGGREGATED);
+			if (aggregator.add(message)) {
+				handler.postDelayed(new Runnable() {
+					public void run() {
+						deliverBucketChanges(aggregator);
+					}
+				}, this.bucketChangeWindowMillis);
+			}
+			return;
+		}
+		if (this.subscriptions.isEmpty()) {
+			this.sendPushNotification(context, message.getPayload());
+			return;
+		}
+		Set<SubscriptionTable.Target> targets = this.subscriptions.match(messageType, message);
+		String payload = message.getPayload();
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####sendPushNotification " + payload + " to " + targets);
+		}
+		this.storeMessage(context, payload);
+		if (targets.isEmpty()) {
+			PushMetrics.getInstance().increment(PushMetrics.Counter.UNSUBSCRIBED);
+			return;
+		}
+		for (SubscriptionTable.Target target : targets) {
+			this.UnitySendMessage(target.getGameObjectName(), target.getMethodName(), payload);
+		}
+	}
+	private void storeMessage(Context context, String message) {
+		PushMessageWriter writer = this.getMessageWriter(context);
+		synchronized (this) {
+			this.lastMessage = message;
+			this.lastMessageLoaded = true;
+			writer.enqueue(message, System.currentTimeMillis());
+		}
+	}
+	/**
+	 * Subscribe the push notifications whose field matches the pattern.
+	 * The subscribed method receives the message as a JSON string.
+	 * Once a subscription is added, the messages are sent only to the subscribers instead of the listener GameObject.
+	 * 
+	 * @param field TOPIC, BUCKET or MESSAGE_TYPE.
+	 * @param pattern value of the field, or prefix of the value followed by '*'.
+	 * @param gameObjectName
+	 * @param methodName
+	 * @return false if the method already subscribes the pattern.
+	 */
+	public boolean subscribe(String field, String pattern, String gameObjectName, String methodName) {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####subscribe " + field + ":" + pattern + " " + gameObjectName + "." + methodName);
+		}
+		return this.subscriptions.subscribe(SubscriptionTable.Field.valueOf(field), pattern, new SubscriptionTable.Target(gameObjectName, methodName));
+	}
+	/**
+	 * Unsubscribe the push notifications.
+	 * 
+	 * @param field TOPIC, BUCKET or MESSAGE_TYPE.
+	 * @param pattern the pattern which is passed to {@link #subscribe(String, String, String, String)}.
+	 * @param gameObjectName
+	 * @param methodName
+	 * @return false if the method doesn't subscribe the pattern.
+	 */
+	public boolean unsubscribe(String field, String pattern, String gameObjectName, String methodName) {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####unsubscribe " + field + ":" + pattern + " " + gameObjectName + "." + methodName);
+		}
+		return this.subscriptions.unsubscribe(SubscriptionTable.Field.valueOf(field), pattern, new SubscriptionTable.Target(gameObjectName, methodName));
+	}
+	/**
+	 * Unsubscribe all the push notifications which the GameObject subscribes.
+	 * Call this when the GameObject is destroyed.
+	 * 
+	 * @param gameObjectName
+	 * @return the number of the removed subscriptions.
+	 */
+	public int unsubscribeAll(String gameObjectName) {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####unsubscribeAll " + gameObjectName);
+		}
+		return this.subscriptions.unsubscribeAll(gameObjectName);
+	}
+	/**
+	 * Enable the aggregation of 'Push to App' messages.
+	 * The messages received within windowMillis are aggregated into a change set per bucket, and each change set is delivered at once
+	 * by OnPushBucketChanged instead of OnPushNotificationsReceived. See {@link BucketChangeAggregator.ChangeSet#toJson()} for the format.
+	 * If there are subscriptions, each change set is sent only to the GameObjects which subscribe its bucket ID or PUSH_TO_APP type,
+	 * in the same way as {@link #sendPushNotification(Context, PushMessage, String)}.
+	 * The messages are stored in either case.
+	 * 
+	 * @param windowMillis
+	 * @param maxObjectIDs the maximum number of the object IDs in a change set, the others are counted but omitted.
+	 */
+	public void enableBucketChangeAggregation(long windowMillis, int maxObjectIDs) {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####enableBucketChangeAggregation windowMillis=" + windowMillis + " maxObjectIDs=" + maxObjectIDs);
+		}
+		this.bucketChangeWindowMillis = Math.max(0, windowMillis);
+		this.replaceBucketChangeAggregator(new BucketChangeAggregator(maxObjectIDs));
+	}
+	/**
+	 * Disable the aggregation of 'Push to App' messages.
+	 * The change sets which are waiting to be delivered are delivered immediately.
+	 */
+	public void disableBucketChangeAggregation() {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####disableBucketChangeAggregation");
+		}
+		this.replaceBucketChangeAggregator(null);
+	}
+	/**
+	 * Cancel the notifications which are shown by this plugin, and start the groups of the notifications over.
+	 * Call this when the application has shown the messages to the user, e.g. in the inbox screen.
+	 */
+	public void clearNotifications() {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####clearNotifications");
+		}
+		NotificationCoordinator.getInstance().clear(UnityPlayer.currentActivity.getApplicationContext());
+	}
+	private void replaceBucketChangeAggregator(BucketChangeAggregator aggregator) {
+		final BucketChangeAggregator previous = this.bucketChangeAggregator;
+		this.bucketChangeAggregator = aggregator;
+		if (previous != null) {
+			handler.post(new Runnable() {
+				public void run() {
+					deliverBucketChanges(previous);
+				}
+			});
+		}
+	}
+	private void deliverBucketChanges(BucketChangeAggregator aggregator) {
+		// The aggregator is empty at the end of the window if it has been drained when it was replaced.
+		for (BucketChangeAggregator.ChangeSet changeSet : aggregator.drain()) {
+			String payload = changeSet.toJson().toString();
+			if (this.subscriptions.isEmpty()) {
+				this.UnitySendMessage(this.getListenerGameObjectName(), "OnPushBucketChanged", payload);
+				continue;
+			}
+			Set<SubscriptionTable.Target> targets = this.subscriptions.match(PushMessageClassifier.Kind.PUSH_TO_APP.name(), changeSet);
+			if (PushLog.isDebugEnabled()) {
+				Log.d("KiiPushUnityPlugin", "#####deliverBucketChanges " + payload + " to " + targets);
+			}
+			if (targets.isEmpty()) {
+				PushMetrics.getInstance().increment(PushMetrics.Counter.UNSUBSCRIBED);
+				continue;
+			}
+			for (SubscriptionTable.Target target : targets) {
+				this.UnitySendMessage(target.getGameObjectName(), target.getMethodName(), payload);
+			}
+		}
+	}
+	/**
+	 * Enable batched delivery of push notifications to the Unity layer.
+	 * The messages received within windowMillis (or until maxCount messages are received) are delivered at once
+	 * as a JSON array by OnPushNotificationsBatchReceived instead of OnPushNotificationsReceived.
+	 * 
+	 * @param windowMillis
+	 * @param maxCount
+	 */
+	public void enableBatchDelivery(long windowMillis, int maxCount) {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####enableBatchDelivery windowMillis=" + windowMillis + " maxCount=" + maxCount);
+		}
+		synchronized (this.batchedMessages) {
+			this.batchWindowMillis = Math.max(0, windowMillis);
+			this.batchMaxCount = Math.max(1, maxCount);
+			this.batchDeliveryEnabled = true;
+		}
+	}
+	/**
+	 * Disable batched delivery of push notifications.
+	 * The messages which are waiting to be delivered are delivered immediately.
+	 */
+	public void disableBatchDelivery() {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####disableBatchDelivery");
+		}
+		synchronized (this.batchedMessages) {
+			this.batchDeliveryEnabled = false;
+		}
+		handler.removeCallbacks(this.deliverBatchTask);
+		handler.post(this.deliverBatchTask);
+	}
+	private void deliverBatch() {
+		StringBuilder batch = new StringBuilder("[");
+		synchronized (this.batchedMessages) {
+			handler.removeCallbacks(this.deliverBatchTask);
+			if (this.batchedMessages.isEmpty()) {
+				return;
+			}
+			for (int i = 0; i < this.batchedMessages.size(); i++) {
+				if (i > 0) {
+					batch.append(',');
+				}
+				batch.append(this.batchedMessages.get(i));
+			}
+			this.batchedMessages.clear();
+		}
+		this.UnitySendMessage(this.getListenerGameObjectName(), "OnPushNotificationsBatchReceived", batch.append(']').toString());
+	}
 	/**
 	 * Get the android SharedPreferences.
 	 * 
 	 * @param context
 	 * @return
 	 */
-	public SharedPreferences getSharedPreference(Context context) {
+	public synchronized SharedPreferences getSharedPreference(Context context) {
 		if (this.sharedPreference == null) {
 			if (context != null) {
 				this.sharedPreference = context.getSharedPreferences("KiiPushUnityPlugin", Context.MODE_PRIVATE);
@@ -113,51 +391,149 @@ public class KiiPushUnityPlugin {
 	 * @return
 	 */
 	public String getLastMessage() {
-		String lastMessage = this.getSharedPreference(UnityPlayer.currentActivity).getString("LAST_MESSAGE", null);
-		if (lastMessage != null) {
-			Editor editor = this.getSharedPreference(UnityPlayer.currentActivity).edit();
-			editor.remove("LAST_MESSAGE");
-			editor.commit();
+		PushMessageWriter writer = this.getMessageWriter(UnityPlayer.currentActivity);
+		synchronized (this) {
+			if (!this.lastMessageLoaded) {
+				this.lastMessage = PushMessageWriter.readLastMessage(this.getSharedPreference(UnityPlayer.currentActivity));
+				this.lastMessageLoaded = true;
+			}
+			String lastMessage = this.lastMessage;
+			if (lastMessage != null) {
+				this.lastMessage = null;
+				writer.enqueueRemoveLastMessage();
+			}
+			return lastMessage;
+		}
+	}
+	/**
+	 * Get the writer which persists the received push messages in background.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	public synchronized PushMessageWriter getMessageWriter(Context context) {
+		if (this.messageWriter == null) {
+			this.messageWriter = new PushMessageWriter(this.getSharedPreference(context), PushMessageInbox.getInstance(context));
+		}
+		return this.messageWriter;
+	}
+	/**
+	 * Commits the push messages which are waiting to be written on the background thread, without blocking the caller.
+	 */
+	public void flushMessagesInBackground() {
+		PushMessageWriter writer;
+		synchronized (this) {
+			writer = this.messageWriter;
+		}
+		if (writer != null) {
+			writer.flushInBackground();
 		}
-		return lastMessage;
+	}
+	/**
+	 * Persists the push messages which are waiting to be written.
+	 * Returns after the messages are written to the storage.
+	 */
+	public void flushMessages() {
+		PushMessageWriter writer;
+		synchronized (this) {
+			writer = this.messageWriter;
+		}
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+	/**
+	 * Get the push messages which are stored in the inbox.
+	 * Unlike getLastMessage, the messages are not deleted, so you can drain the inbox by passing the last sequence number you've got.
+	 * The result is a JSON array like [{"seq":1, "receivedAt":1234567890123, "message":{...}}, ...].
+	 * 
+	 * @param afterSequence returns the messages whose sequence number is greater than this. Set 0 to get from the oldest message.
+	 * @param max the maximum number of messages, must be positive.
+	 * @return
+	 */
+	public String getMessages(long afterSequence, int max) {
+		// The messages which are waiting to be written are also returned.
+		this.flushMessages();
+		JSONArray json = new JSONArray();
+		if (max <= 0) {
+			Log.e("KiiPushUnityPlugin", "#####max must be positive max=" + max);
+			return json.toString();
+		}
+		try {
+			List<PushMessageInbox.Entry> entries = PushMessageInbox.getInstance(UnityPlayer.currentActivity).getMessages(afterSequence, max);
+			for (PushMessageInbox.Entry entry : entries) {
+				JSONObject item = new JSONObject();
+				item.put("seq", entry.getSequence());
+				item.put("receivedAt", entry.getReceivedAt());
+				try {
+					item.put("message", new JSONObject(entry.getMessage()));
+				} catch (JSONException e) {
+					// The message which is not a JSON object is returned as a string.
+					item.put("message", entry.getMessage());
+				}
+				json.put(item);
+			}
+		} catch (IOException e) {
+			Log.e("KiiPushUnityPlugin", "#####Failed to read the inbox ex=" + e.getMessage());
+		} catch (JSONException e) {
+			Log.e("KiiPushUnityPlugin", "#####Failed to build the messages ex=" + e.getMessage());
+		}
+		return json.toString();
 	}
 	/**
 	 * Register the application for GCM and return the registration ID by UnitySendMessage.
+	 * The registration ID is cached per sender ID and version of the application (version code and last update time),
+	 * so the cached ID is returned immediately without registering again while they are not changed.
+	 * The registration is retried with exponential backoff, and you can cancel it by {@link #cancelRegistration()}.
 	 */
 	public void getRegistrationID() {
-		Log.d("KiiPushUnityPlugin", "#####getRegistrationID");
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####getRegistrationID");
+		}
+		final Context context = UnityPlayer.currentActivity.getApplicationContext();
+		final String listenerGameObjectName = this.getListenerGameObjectName();
+		final String senderId = this.senderId;
+		String cachedRegistrationId = this.getCachedRegistrationId(context, senderId);
+		if (!TextUtils.isEmpty(cachedRegistrationId)) {
+			if (PushLog.isDebugEnabled()) {
+				Log.d("KiiPushUnityPlugin", "#####Found cached RegistrationID : " + cachedRegistrationId);
+			}
+			UnitySendMessage(listenerGameObjectName, "OnRegisterPushSucceeded", cachedRegistrationId);
+			return;
+		}
 		// Ensure that the AsyncTask is called from main thread.
 		handler.post(new Runnable() {
 			public void run() {
-				AsyncTask<String, Void, Void> registerTask = new AsyncTask<String, Void, Void>() {
-					@Override
-					protected Void doInBackground(String... params) {
-						String registrationId = "";
-						String errorMessage = "";
-						for (int retry = 0; retry < 3; retry++) {
-							try {
-								GoogleCloudMessaging gcm = GoogleCloudMessaging
-										.getInstance(UnityPlayer.currentActivity);
-								registrationId = gcm.register(params[1]);
-							} catch (Throwable e) {
-								// Nothing to do.
-								Log.d("KiiPushUnityPlugin", "#####Push register is failed");
-								errorMessage = e.getMessage();
-							}
-							if (!registrationId.equals("")) {
-								Log.d("KiiPushUnityPlugin", "#####Found RegistrationID : " + registrationId);
-								break;
-							}
+				Registration started;
+				synchronized (KiiPushUnityPlugin.this) {
+					if (registration != null) {
+						if (PushLog.isDebugEnabled()) {
+							Log.d("KiiPushUnityPlugin", "#####Registration is already in progress");
 						}
-						if (TextUtils.isEmpty(registrationId)) {
-							UnitySendMessage(params[0], "OnRegisterPushFailed", errorMessage);
-						} else {
-							UnitySendMessage(params[0], "OnRegisterPushSucceeded", registrationId);
-						}
-						return null;
+						return;
 					}
-				};
-				registerTask.execute(getListenerGameObjectName(), senderId);
+					started = registration = new Registration(context, listenerGameObjectName, senderId);
+				}
+				started.run();
+			}
+		});
+	}
+	/**
+	 * Cancel the registration which is in progress.
+	 * Neither OnRegisterPushSucceeded nor OnRegisterPushFailed is sent for the cancelled registration.
+	 */
+	public void cancelRegistration() {
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####cancelRegistration");
+		}
+		handler.post(new Runnable() {
+			public void run() {
+				synchronized (KiiPushUnityPlugin.this) {
+					if (registration != null) {
+						registration.cancel();
+						registration = null;
+					}
+				}
 			}
 		});
 	}
@@ -167,20 +543,24 @@ public class KiiPushUnityPlugin {
 	 * @throws IOException
 	 */
 	public void unregisterGCM() throws IOException {
-		Log.d("KiiPushUnityPlugin", "#####unregisterGCM");
+		if (PushLog.isDebugEnabled()) {
+			Log.d("KiiPushUnityPlugin", "#####unregisterGCM");
+		}
+		final Context context = UnityPlayer.currentActivity.getApplicationContext();
 		// Ensure that the AsyncTask is called from main thread.
 		handler.post(new Runnable() {
 			public void run() {
 				AsyncTask<String, Void, Void> unregisterTask = new AsyncTask<String, Void, Void>() {
 					@Override
 					protected Void doInBackground(String... params) {
-						GoogleCloudMessaging gcm = GoogleCloudMessaging
-								.getInstance(UnityPlayer.currentActivity);
 						try {
-							gcm.unregister();
+							getGoogleCloudMessaging(context).unregister();
+							storeRegistrationId(context, null, null);
 							UnitySendMessage(params[0], "OnUnregisterPushSucceeded", "");
 						} catch (IOException e) {
-							Log.d("KiiPushUnityPlugin", "#####Push unregister is failed");
+							if (PushLog.isDebugEnabled()) {
+								Log.d("KiiPushUnityPlugin", "#####Push unregister is failed");
+							}
 							UnitySendMessage(params[0], "OnUnregisterPushFailed", e.getMessage());
 						}
 						return null;
@@ -190,9 +570,211 @@ public class KiiPushUnityPlugin {
 			}
 		});
 	}
+	private synchronized GoogleCloudMessaging getGoogleCloudMessaging(Context context) {
+		if (this.gcm == null) {
+			this.gcm = GoogleCloudMessaging.getInstance(context);
+		}
+		return this.gcm;
+	}
+	/**
+	 * Gets the cached registration ID.
+	 * 
+	 * @param context
+	 * @param senderId
+	 * @return null if the registration ID is not cached for the sender ID and the current version of the application.
+	 */
+	private String getCachedRegistrationId(Context context, String senderId) {
+		SharedPreferences preference = this.getSharedPreference(context);
+		String registrationId = preference.getString(KEY_REGISTRATION_ID, null);
+		if (TextUtils.isEmpty(registrationId) || senderId == null) {
+			return null;
+		}
+		// GCM doesn't guarantee that the registration ID is valid after the application is updated.
+		String version = GCMBroadcastReceiver.getAppVersion(context);
+		if (!senderId.equals(preference.getString(KEY_REGISTRATION_SENDER_ID, null))
+				|| version == null || !version.equals(preference.getString(KEY_REGISTRATION_APP_VERSION, null))) {
+			return null;
+		}
+		return registrationId;
+	}
+	private void storeRegistrationId(Context context, String senderId, String registrationId) {
+		SharedPreferences.Editor editor = this.getSharedPreference(context).edit();
+		if (registrationId == null) {
+			editor.remove(KEY_REGISTRATION_ID);
+			editor.remove(KEY_REGISTRATION_SENDER_ID);
+			editor.remove(KEY_REGISTRATION_APP_VERSION);
+		} else {
+			editor.putString(KEY_REGISTRATION_ID, registrationId);
+			editor.putString(KEY_REGISTRATION_SENDER_ID, senderId);
+			editor.putString(KEY_REGISTRATION_APP_VERSION, GCMBroadcastReceiver.getAppVersion(context));
+		}
+		editor.commit();
+	}
+	/**
+	 * Registration with GCM which is retried with exponential backoff.
+	 * Each attempt runs on the thread pool of AsyncTask, and the next attempt is scheduled on the main thread,
+	 * so the registration doesn't occupy a thread while it is waiting for the backoff.
+	 * This is accessed on the main thread.
+	 */
+	private class Registration implements Runnable {
+		private final Context context;
+		private final String listenerGameObjectName;
+		private final String senderId;
+		private int attempt = 0;
+		private long backoff = INITIAL_BACKOFF_MILLIS;
+		private String errorMessage = "";
+		private AsyncTask<Void, Void, Boolean> task;
+		private boolean cancelled = false;
+
+		Registration(Context context, String listenerGameObjectName, String senderId) {
+			this.context = context;
+			this.listenerGameObjectName = listenerGameObjectName;
+			this.senderId = senderId;
+		}
+		/**
+		 * Starts the next attempt.
+		 */
+		public void run() {
+			if (this.cancelled) {
+				return;
+			}
+			this.task = new AsyncTask<Void, Void, Boolean>() {
+				@Override
+				protected Boolean doInBackground(Void... params) {
+					String registrationId = null;
+					try {
+						registrationId = getGoogleCloudMessaging(context).register(senderId);
+					} catch (Throwable e) {
+						if (PushLog.isDebugEnabled()) {
+							Log.d("KiiPushUnityPlugin", "#####Push register is failed");
+						}
+						errorMessage = e.getMessage();
+					}
+					if (TextUtils.isEmpty(registrationId) || this.isCancelled()) {
+						return false;
+					}
+					if (PushLog.isDebugEnabled()) {
+						Log.d("KiiPushUnityPlugin", "#####Found RegistrationID : " + registrationId);
+					}
+					storeRegistrationId(context, senderId, registrationId);
+					UnitySendMessage(listenerGameObjectName, "OnRegisterPushSucceeded", registrationId);
+					return true;
+				}
+				@Override
+				protected void onPostExecute(Boolean succeeded) {
+					onAttemptFinished(succeeded);
+				}
+				@Override
+				protected void onCancelled() {
+					if (PushLog.isDebugEnabled()) {
+						Log.d("KiiPushUnityPlugin", "#####Registration is cancelled");
+					}
+				}
+			};
+			// The serial executor is shared by all AsyncTasks in the process, so the registration doesn't use it.
+			this.task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+		}
+		private void onAttemptFinished(boolean succeeded) {
+			if (this.cancelled) {
+				return;
+			}
+			this.attempt++;
+			if (succeeded || this.attempt >= MAX_REGISTER_ATTEMPTS) {
+				if (!succeeded) {
+					UnitySendMessage(this.listenerGameObjectName, "OnRegisterPushFailed", this.errorMessage);
+				}
+				synchronized (KiiPushUnityPlugin.this) {
+					if (registration == this) {
+						registration = null;
+					}
+				}
+				return;
+			}
+			// Wait for the backoff with jitter so that the clients don't retry at the same time.
+			long delay = this.backoff / 2 + (long)(Math.random() * this.backoff / 2);
+			if (PushLog.isDebugEnabled()) {
+				Log.d("KiiPushUnityPlugin", "#####Retry to register after " + delay + "ms");
+			}
+			this.backoff = Math.min(this.backoff * 2, MAX_BACKOFF_MILLIS);
+			handler.postDelayed(this, delay);
+		}
+		void cancel() {
+			this.cancelled = true;
+			handler.removeCallbacks(this);
+			if (this.task != null) {
+				this.task.cancel(true);
+			}
+		}
+	}
+	/**
+	 * Get the metrics of the push pipeline as JSON.
+	 * The result includes the latency of each stage, the counters of the pipeline,
+	 * and the statistics of the duplicate filter, the large icon cache and the notifications.
+	 * 
+	 * @param reset clears the metrics after taking the snapshot if true.
+	 * @return
+	 */
+	public String getMetrics(boolean reset) {
+		PushMetrics metrics = PushMetrics.getInstance();
+		JSONObject json = metrics.toJson();
+		try {
+			JSONObject counters = json.getJSONObject("counters");
+			counters.put("LARGE_ICON_CACHE_HIT", LargeIconCache.getInstance().getHitCount());
+			counters.put("LARGE_ICON_CACHE_MISS", LargeIconCache.getInstance().getMissCount());
+			counters.put("NOTIFICATION_POSTED", NotificationCoordinator.getInstance().getPostedCount());
+			counters.put("NOTIFICATION_COALESCED", NotificationCoordinator.getInstance().getCoalescedCount());
+			counters.put("NOTIFICATION_RESOURCES_RESOLVED", NotificationResources.getInstance().getResolutionCount());
+		} catch (JSONException ignore) {
+		}
+		if (reset) {
+			metrics.reset();
+		}
+		return json.toString();
+	}
+	/**
+	 * Enable or disable the debug logs of the push plugin.
+	 * 
+	 * @param enabled
+	 */
+	public void setDebugLogEnabled(boolean enabled) {
+		PushLog.setDebugEnabled(enabled);
+	}
+	/**
+	 * Enable or disable the trace recorder of the push pipeline.
+	 * 
+	 * @param enabled
+	 */
+	public void setTraceEnabled(boolean enabled) {
+		PushTrace.getInstance().setEnabled(enabled);
+	}
+	/**
+	 * Export the recorded trace of the push pipeline to the file.
+	 * 
+	 * @param path path of the file which is overwritten.
+	 * @param chromeTrace writes Chrome trace JSON which can be loaded by chrome://tracing if true, otherwise writes tab separated text.
+	 * @return the number of the exported events, or -1 if failed to write the file.
+	 */
+	public int exportTrace(String path, boolean chromeTrace) {
+		try {
+			return PushTrace.getInstance().export(new File(path), chromeTrace);
+		} catch (IOException e) {
+			Log.e("KiiPushUnityPlugin", "#####Failed to export the trace ex=" + e.getMessage());
+			return -1;
+		}
+	}
+	/**
+	 * Replace the sender of the messages to Unity.
+	 * 
+	 * @param sender set null to use UnityPlayer.UnitySendMessage.
+	 */
+	public void setUnityMessageSender(UnityMessageSender sender) {
+		this.unityMessageSender = sender == null ? UNITY_PLAYER_SENDER : sender;
+	}
 	private void UnitySendMessage(String object, String method, String message) {
+		long start = PushMetrics.getInstance().start();
 		try {
-			UnityPlayer.UnitySendMessage(object, method, message);
+			this.unityMessageSender.sendMessage(object, method, message);
+			PushMetrics.getInstance().record(PushMetrics.Stage.UNITY_SEND, start);
 		} catch (Throwable th) {
 			Log.e("KiiPushUnityPlugin", "#####Failed to send UnitySendMessage ex=" + th.getMessage());
 		}
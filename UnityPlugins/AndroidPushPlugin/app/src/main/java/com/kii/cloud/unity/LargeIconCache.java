@@ -0,0 +1,114 @@
+package com.kii.cloud.unity;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Process-wide LRU cache of the large icon bitmaps which are shown in the notification area.
+ * Bitmaps are decoded with inSampleSize so that they are not much larger than the size of the system's large icon,
+ * and shared across notifications and message types.
+ * The size of the cache is bounded by the byte count of bitmaps.
+ */
+public class LargeIconCache {
+
+	private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+	private static final LargeIconCache INSTANCE = new LargeIconCache((int)Math.min(Runtime.getRuntime().maxMemory() / 32, MAX_CACHE_BYTES));
+
+	/**
+	 * Get instance of LargeIconCache.
+	 * 
+	 * @return
+	 */
+	public static LargeIconCache getInstance() {
+		return INSTANCE;
+	}
+
+	private final LruCache<Integer, Bitmap> cache;
+
+	private LargeIconCache(int maxBytes) {
+		this.cache = new LruCache<Integer, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Integer key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+	}
+	/**
+	 * Gets the bitmap of the specified drawable resource.
+	 * The bitmap is decoded only when it isn't in the cache.
+	 * 
+	 * @param resources
+	 * @param resourceId
+	 * @return null if the resource cannot be decoded.
+	 */
+	public Bitmap getBitmap(Resources resources, int resourceId) {
+		Bitmap bitmap = this.cache.get(resourceId);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		bitmap = decode(resources, resourceId);
+		if (bitmap != null) {
+			this.cache.put(resourceId, bitmap);
+		}
+		return bitmap;
+	}
+	/**
+	 * Gets the number of times that getBitmap returned a cached bitmap.
+	 * 
+	 * @return
+	 */
+	public int getHitCount() {
+		return this.cache.hitCount();
+	}
+	/**
+	 * Gets the number of times that getBitmap had to decode a bitmap.
+	 * 
+	 * @return
+	 */
+	public int getMissCount() {
+		return this.cache.missCount();
+	}
+	/**
+	 * Removes all cached bitmaps.
+	 */
+	public void evictAll() {
+		this.cache.evictAll();
+	}
+	private static Bitmap decode(Resources resources, int resourceId) {
+		try {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeResource(resources, resourceId, options);
+			int width = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+			int height = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+			options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, width, height);
+			options.inJustDecodeBounds = false;
+			return BitmapFactory.decodeResource(resources, resourceId, options);
+		} catch (Exception e) {
+			Log.w("LargeIconCache", "#####failed to decode the large icon. id=" + resourceId, e);
+			return null;
+		}
+	}
+	/**
+	 * Calculates the largest power of 2 which keeps the both dimensions equal or larger than the requested size.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param requestedWidth
+	 * @param requestedHeight
+	 * @return
+	 */
+	static int calculateInSampleSize(int width, int height, int requestedWidth, int requestedHeight) {
+		int inSampleSize = 1;
+		if (requestedWidth <= 0 || requestedHeight <= 0) {
+			return inSampleSize;
+		}
+		while ((width / (inSampleSize * 2)) >= requestedWidth && (height / (inSampleSize * 2)) >= requestedHeight) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
+	}
+}
@@ -0,0 +1,289 @@
+package com.kii.cloud.unity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Coordinates the notifications which are shown in the notification area.
+ * The messages are grouped (e.g. per MessageType or topic), and each group is shown as one notification with a stable id
+ * which accumulates the recent messages.
+ * The updates of notifications are rate limited by a token bucket. The updates which exceed the rate are coalesced
+ * and the latest state of the group is posted when a token is available, so a burst of push messages results in a few updates.
+ * A group starts over when its notification is opened or dismissed, see {@link #reset(String)}.
+ * The notification is built outside the lock of the coordinator, the updates of a group are posted in order.
+ */
+public class NotificationCoordinator {
+
+	/**
+	 * Builds the notification of a group.
+	 */
+	public interface NotificationBuilder {
+		/**
+		 * @param count the number of messages in the group.
+		 * @param lines the texts of the recent messages in the group, the newest one is the last.
+		 * @return
+		 */
+		Notification build(int count, List<String> lines);
+	}
+
+	private static final int MAX_LINES = 5;
+	private static final int BUCKET_CAPACITY = 3;
+	private static final long REFILL_INTERVAL_MILLIS = 1000;
+	/**
+	 * The group starts over when it is not updated for this period.
+	 */
+	private static final long GROUP_EXPIRE_MILLIS = 30 * 60 * 1000;
+
+	private static final NotificationCoordinator INSTANCE = new NotificationCoordinator();
+
+	/**
+	 * Get instance of NotificationCoordinator.
+	 * 
+	 * @return
+	 */
+	public static NotificationCoordinator getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Snapshot of a group to build the notification outside the lock.
+	 */
+	private static class Update {
+		final Group group;
+		final long version;
+		final int count;
+		final List<String> lines;
+		final NotificationBuilder builder;
+		Update(Group g) {
+			this.group = g;
+			this.version = ++g.version;
+			this.count = g.count;
+			this.lines = new ArrayList<String>(g.lines);
+			this.builder = g.builder;
+			g.unposted = 0;
+		}
+	}
+	private static class Group {
+		final String name;
+		final int id;
+		int count = 0;
+		final LinkedList<String> lines = new LinkedList<String>();
+		NotificationBuilder builder;
+		long updatedAt;
+		boolean deferred = false;
+		/**
+		 * The number of the messages which are added after the last update was built.
+		 */
+		int unposted = 0;
+		/**
+		 * Incremented for each update, the update which is older than the posted one is skipped.
+		 */
+		long version = 0;
+		long postedVersion = 0;
+		Group(String name) {
+			this.name = name;
+			this.id = name.hashCode();
+		}
+	}
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+	private double tokens = BUCKET_CAPACITY;
+	private long lastRefill = 0;
+	private int postedCount = 0;
+	private int coalescedCount = 0;
+
+	private NotificationCoordinator() {
+	}
+	/**
+	 * Adds the message to the group and updates the notification of the group.
+	 * If the rate limit is exceeded, the update is deferred.
+	 * 
+	 * @param context
+	 * @param group
+	 * @param line text of the message.
+	 * @param builder builds the notification of the group.
+	 */
+	public void post(Context context, String group, String line, NotificationBuilder builder) {
+		final Context applicationContext = context.getApplicationContext();
+		long start = PushMetrics.getInstance().start();
+		Update update = null;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			this.removeExpiredGroups(now);
+			Group g = this.groups.get(group);
+			if (g == null) {
+				g = new Group(group);
+				this.groups.put(group, g);
+			}
+			g.count++;
+			g.unposted++;
+			g.lines.addLast(line);
+			if (g.lines.size() > MAX_LINES) {
+				g.lines.removeFirst();
+			}
+			g.builder = builder;
+			g.updatedAt = now;
+			if (g.deferred) {
+				this.coalescedCount++;
+				return;
+			}
+			if (this.tryAcquire(now)) {
+				update = new Update(g);
+				this.postedCount++;
+			} else {
+				g.deferred = true;
+				this.coalescedCount++;
+				this.scheduleDeferred(applicationContext, g, now);
+			}
+		}
+		if (update != null) {
+			this.buildAndNotify(applicationContext, update);
+			PushMetrics.getInstance().record(PushMetrics.Stage.NOTIFY, start);
+		}
+	}
+	/**
+	 * Starts the group over, e.g. when its notification is opened or dismissed.
+	 * The messages which are added after the last update are kept, they are shown by the deferred update.
+	 * 
+	 * @param group
+	 */
+	public synchronized void reset(String group) {
+		Group g = this.groups.get(group);
+		if (g == null) {
+			return;
+		}
+		if (g.unposted == 0) {
+			this.groups.remove(group);
+			return;
+		}
+		g.count = g.unposted;
+		while (g.lines.size() > g.unposted) {
+			g.lines.removeFirst();
+		}
+	}
+	/**
+	 * Cancels all notifications and discards the groups.
+	 * 
+	 * @param context
+	 */
+	public void clear(Context context) {
+		List<Integer> ids = new ArrayList<Integer>();
+		synchronized (this) {
+			for (Group g : this.groups.values()) {
+				ids.add(g.id);
+			}
+			this.groups.clear();
+		}
+		NotificationManager notificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+		if (notificationManager != null) {
+			for (int id : ids) {
+				notificationManager.cancel(id);
+			}
+		}
+	}
+	/**
+	 * Gets the number of the notifications which are posted to NotificationManager.
+	 * 
+	 * @return
+	 */
+	public synchronized int getPostedCount() {
+		return this.postedCount;
+	}
+	/**
+	 * Gets the number of the messages whose updates are coalesced into a later update.
+	 * 
+	 * @return
+	 */
+	public synchronized int getCoalescedCount() {
+		return this.coalescedCount;
+	}
+	private void scheduleDeferred(final Context context, final Group g, long now) {
+		long delay = Math.max(0, this.lastRefill + REFILL_INTERVAL_MILLIS - now);
+		this.handler.postDelayed(new Runnable() {
+			public void run() {
+				postDeferred(context, g);
+			}
+		}, delay);
+	}
+	private void postDeferred(Context context, Group g) {
+		long start = PushMetrics.getInstance().start();
+		Update update;
+		synchronized (this) {
+			if (this.groups.get(g.name) != g) {
+				// The group has been discarded.
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (!this.tryAcquire(now)) {
+				this.scheduleDeferred(context, g, now);
+				return;
+			}
+			g.deferred = false;
+			update = new Update(g);
+			this.postedCount++;
+		}
+		this.buildAndNotify(context, update);
+		PushMetrics.getInstance().record(PushMetrics.Stage.NOTIFY, start);
+	}
+	/**
+	 * Discards the groups which are not updated for GROUP_EXPIRE_MILLIS.
+	 */
+	private void removeExpiredGroups(long now) {
+		for (Iterator<Group> i = this.groups.values().iterator(); i.hasNext();) {
+			Group g = i.next();
+			if (!g.deferred && now - g.updatedAt > GROUP_EXPIRE_MILLIS) {
+				i.remove();
+			}
+		}
+	}
+	private void buildAndNotify(Context context, Update update) {
+		Group g = update.group;
+		// Serializes the updates of the group, so an older update never overwrites a newer one.
+		synchronized (g) {
+			if (update.version < g.postedVersion) {
+				return;
+			}
+			Notification notification = update.builder.build(update.count, update.lines);
+			this.notify(context, g.id, notification);
+			g.postedVersion = update.version;
+		}
+	}
+	private boolean tryAcquire(long now) {
+		if (this.lastRefill == 0) {
+			this.lastRefill = now;
+		}
+		long elapsed = now - this.lastRefill;
+		if (elapsed >= REFILL_INTERVAL_MILLIS) {
+			this.tokens = Math.min(BUCKET_CAPACITY, this.tokens + (double)elapsed / REFILL_INTERVAL_MILLIS);
+			this.lastRefill = now;
+		}
+		if (this.tokens >= 1) {
+			this.tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+	private void notify(Context context, int id, Notification notification) {
+		NotificationManager notificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
+		if (notificationManager != null) {
+			if (PushLog.isDebugEnabled()) {
+				Log.d("NotificationCoordinator", "#####notificationManager.notify id=" + id);
+			}
+			notificationManager.notify(id, notification);
+		} else {
+			Log.w("NotificationCoordinator", "#####unable to get the NotificationManager");
+		}
+	}
+}
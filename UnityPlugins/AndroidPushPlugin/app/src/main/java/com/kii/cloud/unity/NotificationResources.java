@@ -0,0 +1,236 @@
+package com.kii.cloud.unity;
+
+import android.content.ComponentName;
+
+/**
+ * Process-wide cache of the resources which are used to show a push notification in the notification area.
+ * Each value is resolved only once by {@link AbstractGcmIntentService} and kept until {@link #clear()} is called.
+ * You can pre-seed a value by calling the setter before the first push notification is received,
+ * in this case AbstractGcmIntentService doesn't resolve the value.
+ * The seeded values are kept by {@link #clearResolved()}, which is called when the configuration of the device is changed.
+ */
+public class NotificationResources {
+
+	private static final NotificationResources INSTANCE = new NotificationResources();
+
+	private static final int SMALL_ICON = 1;
+	private static final int LARGE_ICON = 1 << 1;
+	private static final int SOUND = 1 << 2;
+	private static final int NOTIFICATION_COLOR = 1 << 3;
+	private static final int APP_NAME = 1 << 4;
+	private static final int LAUNCH_COMPONENT = 1 << 5;
+
+	/**
+	 * Get instance of NotificationResources.
+	 * 
+	 * @return
+	 */
+	public static NotificationResources getInstance() {
+		return INSTANCE;
+	}
+
+	private Integer smallIcon;
+	private Integer largeIcon;
+	private Integer sound;
+	private Integer notificationColor;
+	private boolean notificationColorResolved;
+	private String appName;
+	private ComponentName launchComponent;
+	private int resolutionCount;
+	/**
+	 * Bits of the values which are seeded by the setters.
+	 */
+	private int seeded;
+	/**
+	 * True while AbstractGcmIntentService is resolving the values, the values which are set in this case are not seeded.
+	 */
+	private boolean resolving;
+
+	private NotificationResources() {
+	}
+	private NotificationResources(NotificationResources source) {
+		this.smallIcon = source.smallIcon;
+		this.largeIcon = source.largeIcon;
+		this.sound = source.sound;
+		this.notificationColor = source.notificationColor;
+		this.notificationColorResolved = source.notificationColorResolved;
+		this.appName = source.appName;
+		this.launchComponent = source.launchComponent;
+		this.resolutionCount = source.resolutionCount;
+	}
+	/**
+	 * Gets a copy of the current values, which is not affected by {@link #clear()}.
+	 * 
+	 * @return
+	 */
+	public synchronized NotificationResources snapshot() {
+		return new NotificationResources(this);
+	}
+	/**
+	 * Gets resource id of small icon.
+	 * 
+	 * @return null if the value is not resolved yet.
+	 */
+	public synchronized Integer getSmallIcon() {
+		return this.smallIcon;
+	}
+	/**
+	 * Sets resource id of small icon.
+	 * 
+	 * @param smallIcon
+	 */
+	public synchronized void setSmallIcon(int smallIcon) {
+		this.smallIcon = smallIcon;
+		this.markSeeded(SMALL_ICON);
+	}
+	/**
+	 * Gets resource id of large icon.
+	 * 
+	 * @return null if the value is not resolved yet.
+	 */
+	public synchronized Integer getLargeIcon() {
+		return this.largeIcon;
+	}
+	/**
+	 * Sets resource id of large icon.
+	 * 
+	 * @param largeIcon
+	 */
+	public synchronized void setLargeIcon(int largeIcon) {
+		this.largeIcon = largeIcon;
+		this.markSeeded(LARGE_ICON);
+	}
+	/**
+	 * Gets resource id of sound file.
+	 * 
+	 * @return null if the value is not resolved yet.
+	 */
+	public synchronized Integer getSound() {
+		return this.sound;
+	}
+	/**
+	 * Sets resource id of sound file.
+	 * 
+	 * @param sound
+	 */
+	public synchronized void setSound(int sound) {
+		this.sound = sound;
+		this.markSeeded(SOUND);
+	}
+	/**
+	 * Checks if the notification color is resolved.
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isNotificationColorResolved() {
+		return this.notificationColorResolved;
+	}
+	/**
+	 * Gets ARGB color for notification color.
+	 * 
+	 * @return null if notification color is not defined or not resolved yet.
+	 */
+	public synchronized Integer getNotificationColor() {
+		return this.notificationColor;
+	}
+	/**
+	 * Sets ARGB color for notification color.
+	 * 
+	 * @param notificationColor null if notification color is not defined.
+	 */
+	public synchronized void setNotificationColor(Integer notificationColor) {
+		this.notificationColor = notificationColor;
+		this.notificationColorResolved = true;
+		this.markSeeded(NOTIFICATION_COLOR);
+	}
+	/**
+	 * Gets app name.
+	 * 
+	 * @return null if the value is not resolved yet.
+	 */
+	public synchronized String getAppName() {
+		return this.appName;
+	}
+	/**
+	 * Sets app name.
+	 * 
+	 * @param appName
+	 */
+	public synchronized void setAppName(String appName) {
+		this.appName = appName;
+		this.markSeeded(APP_NAME);
+	}
+	/**
+	 * Gets the component of the activity which is launched when the notification is tapped.
+	 * 
+	 * @return null if the value is not resolved yet.
+	 */
+	public synchronized ComponentName getLaunchComponent() {
+		return this.launchComponent;
+	}
+	/**
+	 * Sets the component of the activity which is launched when the notification is tapped.
+	 * 
+	 * @param launchComponent
+	 */
+	public synchronized void setLaunchComponent(ComponentName launchComponent) {
+		this.launchComponent = launchComponent;
+		this.markSeeded(LAUNCH_COMPONENT);
+	}
+	/**
+	 * Gets the number of times that AbstractGcmIntentService has resolved the values.
+	 * This number stops increasing once all values are resolved.
+	 * 
+	 * @return
+	 */
+	public synchronized int getResolutionCount() {
+		return this.resolutionCount;
+	}
+	synchronized void incrementResolutionCount() {
+		this.resolutionCount++;
+	}
+	/**
+	 * Starts or ends the resolution by AbstractGcmIntentService.
+	 * 
+	 * @param resolving
+	 */
+	synchronized void setResolving(boolean resolving) {
+		this.resolving = resolving;
+	}
+	private void markSeeded(int bit) {
+		if (!this.resolving) {
+			this.seeded |= bit;
+		}
+	}
+	/**
+	 * Discards all values including the seeded values, they are resolved again when the next push notification is shown.
+	 */
+	public synchronized void clear() {
+		this.seeded = 0;
+		this.clearResolved();
+	}
+	/**
+	 * Discards the values which are resolved by AbstractGcmIntentService, the values which are seeded by the setters are kept.
+	 */
+	public synchronized void clearResolved() {
+		if ((this.seeded & SMALL_ICON) == 0) {
+			this.smallIcon = null;
+		}
+		if ((this.seeded & LARGE_ICON) == 0) {
+			this.largeIcon = null;
+		}
+		if ((this.seeded & SOUND) == 0) {
+			this.sound = null;
+		}
+		if ((this.seeded & NOTIFICATION_COLOR) == 0) {
+			this.notificationColor = null;
+			this.notificationColorResolved = false;
+		}
+		if ((this.seeded & APP_NAME) == 0) {
+			this.appName = null;
+		}
+		if ((this.seeded & LAUNCH_COMPONENT) == 0) {
+			this.launchComponent = null;
+		}
+	}
+}
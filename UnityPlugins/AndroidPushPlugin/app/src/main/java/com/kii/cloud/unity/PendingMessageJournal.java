@@ -0,0 +1,422 @@
+package com.kii.cloud.unity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Durable queue of the received push messages which haven't been handled yet.
+ * The service appends a message to the journal while it holds the wake lock, and releases the wake lock after the message is synced
+ * before the message is queued, so the waiting messages and the rest of the handling don't keep the device awake.
+ * The messages which are appended within a short window are written to a single journal file and synced at once
+ * in the same way as {@link PushMessageWriter}, so a burst of push messages costs one sync instead of one per message.
+ * The message is removed by a removal record after it is handled, and the journal is truncated when no message is pending.
+ * The removal records are not synced, a handled message may be replayed after a crash and it is dropped by the duplicate filter.
+ * If the process is killed before the message is handled, the message is replayed when the service is created in the next process.
+ *
+ * Each record consists of the following fields. A record which is partially written by a crash is truncated.
+ * <pre>
+ * int  length of the message in bytes, -1 for the removal of the message
+ * long id of the message
+ * byte[] the message encoded in UTF-8
+ * </pre>
+ */
+public class PendingMessageJournal {
+
+	/**
+	 * Name of the extra which has the id of the message in the journal.
+	 */
+	static final String EXTRA_JOURNAL_ID = "com.kii.cloud.unity.JOURNAL_ID";
+	/**
+	 * Action of the intents from GCM, GoogleCloudMessaging#getMessageType returns null for the other actions.
+	 */
+	static final String ACTION_RECEIVE = "com.google.android.c2dm.intent.RECEIVE";
+
+	static final String FILE_NAME = "KiiPushUnityPlugin_pending.log";
+	/**
+	 * The wake locks are held during the window, so it is shorter than the window of PushMessageWriter.
+	 */
+	private static final long COMMIT_WINDOW_MILLIS = 10;
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final int REMOVED = -1;
+	/**
+	 * The journal is rewritten with only the pending messages when it exceeds this size.
+	 */
+	private static final int MAX_JOURNAL_BYTES = 256 * 1024;
+
+	private static PendingMessageJournal INSTANCE;
+
+	/**
+	 * Get instance of PendingMessageJournal.
+	 *
+	 * @param context
+	 * @return
+	 */
+	public static synchronized PendingMessageJournal getInstance(Context context) {
+		if (INSTANCE == null) {
+			INSTANCE = new PendingMessageJournal(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Callback of {@link PendingMessageJournal#append(Bundle, Callback)}.
+	 */
+	public interface Callback {
+		/**
+		 * Called after the message is synced to the storage.
+		 * The callbacks are called one at a time in the appended order, on the thread of the journal or the thread which calls flush.
+		 *
+		 * @param id id of the message which is passed to {@link PendingMessageJournal#remove(long)} after the message is handled,
+		 *        0 if the message is not written to the journal.
+		 */
+		void onCommitted(long id);
+	}
+
+	private final File file;
+	private final Handler handler;
+	private final Runnable commitTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Object lock = new Object();
+	private List<Bundle> pendingExtras = new ArrayList<Bundle>();
+	private List<Callback> pendingCallbacks = new ArrayList<Callback>();
+	private List<Long> pendingRemovals = new ArrayList<Long>();
+	private boolean commitScheduled = false;
+
+	// The following fields are guarded by this.
+	private RandomAccessFile journal;
+	/**
+	 * The records of the messages which haven't been removed, in the appended order.
+	 */
+	private final Map<Long, byte[]> liveRecords = new LinkedHashMap<Long, byte[]>();
+	private long nextId = 1;
+	/**
+	 * The messages which are left by the previous process, null after they are taken.
+	 */
+	private List<Long> orphans;
+	private boolean recovered = false;
+
+	private PendingMessageJournal(File file) {
+		this.file = file;
+		HandlerThread thread = new HandlerThread("KiiPendingMessageJournal");
+		thread.start();
+		this.handler = new Handler(thread.getLooper());
+	}
+	/**
+	 * Appends the extras of the received message. This returns immediately, so it can be called on the main thread.
+	 * The messages which are appended within the window are written and synced at once, and then the callbacks are called.
+	 *
+	 * @param extras null to call the callback in order without writing a message.
+	 * @param callback
+	 */
+	public void append(Bundle extras, Callback callback) {
+		synchronized (this.lock) {
+			this.pendingExtras.add(extras);
+			this.pendingCallbacks.add(callback);
+			this.scheduleCommit();
+		}
+	}
+	/**
+	 * Removes the message which has been handled.
+	 *
+	 * @param id the id which is passed to {@link Callback#onCommitted(long)}.
+	 */
+	public void remove(long id) {
+		synchronized (this.lock) {
+			this.pendingRemovals.add(id);
+			this.scheduleCommit();
+		}
+	}
+	/**
+	 * Runs the task on the thread of the journal, so the main thread doesn't wait for the storage.
+	 * The tasks run one at a time in the posted order.
+	 *
+	 * @param task
+	 */
+	public void post(Runnable task) {
+		this.handler.post(task);
+	}
+	/**
+	 * Writes the pending messages and removals on the calling thread, and calls the callbacks.
+	 * Returns after the messages are synced.
+	 */
+	public void flush() {
+		// Holds the journal while committing so that the flushes on the different threads don't reorder the messages.
+		synchronized (this) {
+			List<Bundle> extrasList;
+			List<Callback> callbacks;
+			List<Long> removals;
+			synchronized (this.lock) {
+				extrasList = this.pendingExtras;
+				callbacks = this.pendingCallbacks;
+				removals = this.pendingRemovals;
+				this.pendingExtras = new ArrayList<Bundle>();
+				this.pendingCallbacks = new ArrayList<Callback>();
+				this.pendingRemovals = new ArrayList<Long>();
+				this.commitScheduled = false;
+				this.handler.removeCallbacks(this.commitTask);
+			}
+			if (extrasList.isEmpty() && removals.isEmpty()) {
+				return;
+			}
+			long[] ids = this.write(extrasList, removals);
+			for (int i = 0; i < callbacks.size(); i++) {
+				try {
+					callbacks.get(i).onCommitted(ids[i]);
+				} catch (RuntimeException e) {
+					// The following messages must be queued even if a callback fails.
+					Log.e("PendingMessageJournal", "#####callback failed ex=" + e.getMessage(), e);
+				}
+			}
+		}
+	}
+	/**
+	 * Takes the messages which were left by the previous process.
+	 * This returns the messages only at the first call in the process.
+	 * This reads the journal, so call this on the thread of the journal, see {@link #post(Runnable)}.
+	 *
+	 * @param service the service which handles the messages.
+	 * @return the intents to be started, each message is removed after it is handled.
+	 */
+	public synchronized List<Intent> takeOrphans(ComponentName service) {
+		List<Intent> intents = new ArrayList<Intent>();
+		try {
+			this.open();
+		} catch (IOException e) {
+			Log.e("PendingMessageJournal", "#####Failed to read the journal ex=" + e.getMessage());
+			return intents;
+		}
+		if (this.orphans == null) {
+			return intents;
+		}
+		for (Long id : this.orphans) {
+			byte[] record = this.liveRecords.get(id);
+			if (record == null) {
+				continue;
+			}
+			try {
+				JSONObject json = new JSONObject(new String(record, "UTF-8"));
+				Bundle extras = new Bundle();
+				Iterator<?> keys = json.keys();
+				while (keys.hasNext()) {
+					String key = (String)keys.next();
+					extras.putString(key, json.getString(key));
+				}
+				Intent intent = new Intent(ACTION_RECEIVE).setComponent(service).putExtras(extras);
+				intent.putExtra(EXTRA_JOURNAL_ID, id.longValue());
+				intents.add(intent);
+			} catch (IOException e) {
+				Log.w("PendingMessageJournal", "#####discard the message " + id + " ex=" + e.getMessage());
+				this.remove(id);
+			} catch (JSONException e) {
+				Log.w("PendingMessageJournal", "#####discard the message " + id + " ex=" + e.getMessage());
+				this.remove(id);
+			}
+		}
+		this.orphans = null;
+		return intents;
+	}
+	/**
+	 * Writes the messages and the removals, and syncs the journal if a message is written.
+	 *
+	 * @return the ids of the messages, 0 if the message is not written.
+	 */
+	private long[] write(List<Bundle> extrasList, List<Long> removals) {
+		long[] ids = new long[extrasList.size()];
+		PushMetrics metrics = PushMetrics.getInstance();
+		long start = metrics.start();
+		long validLength = -1;
+		try {
+			this.open();
+			validLength = this.journal.length();
+			ByteBuffer records = ByteBuffer.allocate(HEADER_SIZE * removals.size());
+			for (Long id : removals) {
+				if (this.liveRecords.remove(id) != null) {
+					records.putInt(REMOVED).putLong(id);
+				}
+			}
+			List<byte[]> messages = new ArrayList<byte[]>();
+			int messageBytes = 0;
+			for (int i = 0; i < extrasList.size(); i++) {
+				byte[] message = toRecord(extrasList.get(i));
+				if (message != null) {
+					ids[i] = this.nextId++;
+					this.liveRecords.put(ids[i], message);
+					messages.add(message);
+					messageBytes += HEADER_SIZE + message.length;
+				}
+			}
+			if (this.liveRecords.isEmpty()) {
+				// Nothing is pending, the journal starts over.
+				this.journal.setLength(0);
+			} else if (validLength + records.position() + messageBytes > MAX_JOURNAL_BYTES) {
+				this.compact();
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocate(records.position() + messageBytes);
+				buffer.put(records.array(), 0, records.position());
+				int m = 0;
+				for (int i = 0; i < ids.length; i++) {
+					if (ids[i] != 0) {
+						byte[] message = messages.get(m++);
+						buffer.putInt(message.length).putLong(ids[i]).put(message);
+					}
+				}
+				this.journal.seek(validLength);
+				this.journal.write(buffer.array());
+				if (!messages.isEmpty()) {
+					this.journal.getFD().sync();
+				}
+			}
+			if (!messages.isEmpty()) {
+				metrics.record(PushMetrics.Stage.ENQUEUE, start);
+				if (PushLog.isDebugEnabled()) {
+					Log.d("PendingMessageJournal", "#####committed messages=" + messages.size() + " removals=" + removals.size());
+				}
+			}
+		} catch (IOException e) {
+			// The messages are still handled, they are lost only if the process is killed before that.
+			Log.e("PendingMessageJournal", "#####Failed to write the journal ex=" + e.getMessage());
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] != 0) {
+					this.liveRecords.remove(ids[i]);
+					ids[i] = 0;
+				}
+			}
+			this.rollback(validLength);
+		}
+		return ids;
+	}
+	/**
+	 * Serializes the extras of the message.
+	 *
+	 * @return null if the message is not written.
+	 */
+	private static byte[] toRecord(Bundle extras) throws IOException {
+		if (extras == null) {
+			return null;
+		}
+		try {
+			JSONObject json = PushPayload.toJson(new PushMessage(extras));
+			// The wake lock is meaningless in the other process.
+			json.remove(GCMBroadcastReceiver.EXTRA_WAKE_LOCK_ID);
+			return json.toString().getBytes("UTF-8");
+		} catch (RuntimeException e) {
+			Log.e("PendingMessageJournal", "#####Failed to serialize the message ex=" + e.getMessage());
+			return null;
+		}
+	}
+	/**
+	 * Rewrites the journal with only the pending messages, and syncs it.
+	 * The new journal replaces the old one atomically.
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(this.file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+		try {
+			out.setLength(0);
+			for (Map.Entry<Long, byte[]> record : this.liveRecords.entrySet()) {
+				ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.getValue().length);
+				buffer.putInt(record.getValue().length).putLong(record.getKey()).put(record.getValue());
+				out.write(buffer.array());
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		this.journal.close();
+		boolean renamed = compacted.renameTo(this.file);
+		this.journal = new RandomAccessFile(this.file, "rw");
+		if (!renamed) {
+			compacted.delete();
+			throw new IOException("cannot rename " + compacted.getName());
+		}
+	}
+	/**
+	 * Truncates the records which are partially written by the failed write.
+	 */
+	private void rollback(long validLength) {
+		try {
+			if (this.journal == null) {
+				return;
+			}
+			if (validLength >= 0 && this.journal.length() > validLength) {
+				this.journal.setLength(validLength);
+			}
+		} catch (IOException e) {
+			Log.e("PendingMessageJournal", "#####Failed to roll back the journal ex=" + e.getMessage());
+		}
+	}
+	/**
+	 * Opens the journal and recovers the messages which were left by the previous process.
+	 * A record which is partially written by a crash is truncated.
+	 */
+	private void open() throws IOException {
+		if (this.journal != null) {
+			return;
+		}
+		RandomAccessFile journal = new RandomAccessFile(this.file, "rw");
+		if (this.recovered) {
+			this.journal = journal;
+			return;
+		}
+		try {
+			long validLength = 0;
+			long fileLength = journal.length();
+			while (validLength + HEADER_SIZE <= fileLength) {
+				journal.seek(validLength);
+				int length = journal.readInt();
+				long id = journal.readLong();
+				if (length == REMOVED) {
+					this.liveRecords.remove(id);
+				} else if (length < 0 || validLength + HEADER_SIZE + length > fileLength) {
+					break;
+				} else {
+					byte[] record = new byte[length];
+					journal.readFully(record);
+					this.liveRecords.put(id, record);
+					validLength += length;
+				}
+				validLength += HEADER_SIZE;
+				this.nextId = Math.max(this.nextId, id + 1);
+			}
+			if (validLength < fileLength) {
+				Log.w("PendingMessageJournal", "#####truncate the broken record in " + this.file.getName());
+				journal.setLength(validLength);
+			}
+		} catch (IOException e) {
+			journal.close();
+			this.liveRecords.clear();
+			throw e;
+		}
+		this.journal = journal;
+		this.orphans = new ArrayList<Long>(this.liveRecords.keySet());
+		this.recovered = true;
+	}
+	private void scheduleCommit() {
+		if (!this.commitScheduled) {
+			this.commitScheduled = true;
+			this.handler.postDelayed(this.commitTask, COMMIT_WINDOW_MILLIS);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.kii.cloud.unity;
+
+import android.util.Log;
+
+/**
+ * Switch of the debug logs of the push plugin.
+ * The debug logs include the payloads of push messages, so the log strings are built only when the debug log is enabled.
+ * The debug log is disabled by default. You can enable it by {@link #setDebugEnabled(boolean)}
+ * or by 'adb shell setprop log.tag.KiiPushUnityPlugin DEBUG' before the process starts.
+ */
+public class PushLog {
+
+	private static final String TAG = "KiiPushUnityPlugin";
+
+	private static volatile boolean debugEnabled = Log.isLoggable(TAG, Log.DEBUG);
+
+	private PushLog() {
+	}
+	/**
+	 * Checks if the debug log is enabled.
+	 * 
+	 * @return
+	 */
+	public static boolean isDebugEnabled() {
+		return debugEnabled;
+	}
+	/**
+	 * Enables or disables the debug log.
+	 * 
+	 * @param enabled
+	 */
+	public static void setDebugEnabled(boolean enabled) {
+		debugEnabled = enabled;
+	}
+}
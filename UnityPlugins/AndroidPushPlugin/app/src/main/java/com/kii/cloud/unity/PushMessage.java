@@ -0,0 +1,146 @@
+package com.kii.cloud.unity;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+import android.os.Bundle;
+
+/**
+ * Received push message.
+ * The message can be a lazy view of the Bundle which is received from GCM.
+ * In this case, the fields are read from the Bundle directly and the JSON is built only when it is needed.
+ * The message is serialized to a string only once, and the string is shared by the notification,
+ * the persistence and the Unity layer.
+ * The JSON which is returned by {@link #getJson()} can be modified, the serialized string is discarded whenever the JSON is handed out.
+ */
+public class PushMessage implements MessageFields {
+
+	private final Bundle bundle;
+	private JSONObject json;
+	private String payload;
+
+	public PushMessage(JSONObject json) {
+		this.bundle = null;
+		this.json = json;
+	}
+	/**
+	 * Creates a lazy view of the Bundle.
+	 * 
+	 * @param bundle
+	 */
+	public PushMessage(Bundle bundle) {
+		this.bundle = bundle;
+		this.json = null;
+	}
+	/**
+	 * Checks if the message has the field.
+	 * This doesn't build the JSON.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public boolean has(String key) {
+		if (this.bundle != null) {
+			return this.bundle.containsKey(key);
+		}
+		return this.json.has(key);
+	}
+	/**
+	 * Gets the value of the field as string.
+	 * This doesn't build the JSON.
+	 * 
+	 * @param key
+	 * @return null if the message doesn't have the field.
+	 */
+	public String getString(String key) {
+		Object value = this.get(key);
+		return value == null ? null : value.toString();
+	}
+	/**
+	 * Gets the value of the field.
+	 * This doesn't build the JSON.
+	 * 
+	 * @param key
+	 * @return null if the message doesn't have the field.
+	 */
+	public Object get(String key) {
+		if (this.bundle != null) {
+			return this.bundle.get(key);
+		}
+		return this.json.opt(key);
+	}
+	/**
+	 * Gets the names of the fields.
+	 * This doesn't build the JSON if the message is a view of the Bundle.
+	 * 
+	 * @return
+	 */
+	public Set<String> keySet() {
+		if (this.bundle != null) {
+			return this.bundle.keySet();
+		}
+		Set<String> keys = new LinkedHashSet<String>();
+		Iterator<?> it = this.json.keys();
+		while (it.hasNext()) {
+			keys.add((String)it.next());
+		}
+		return keys;
+	}
+	/**
+	 * Checks if the JSON has been built.
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isJsonBuilt() {
+		return this.json != null;
+	}
+	/**
+	 * Gets the message as JSON.
+	 * If the message is a view of the Bundle, the JSON is built at the first call.
+	 * The caller may modify the JSON, so the serialized string is discarded.
+	 * 
+	 * @return
+	 */
+	public synchronized JSONObject getJson() {
+		if (this.json == null) {
+			this.json = this.toJson(this.bundle);
+		}
+		this.payload = null;
+		return this.json;
+	}
+	/**
+	 * Discards the serialized string, so that the modifications of the JSON are reflected by the next {@link #getPayload()}.
+	 * Call this if you keep the JSON and modify it after {@link #getPayload()} is called.
+	 */
+	public synchronized void invalidatePayload() {
+		this.payload = null;
+	}
+	/**
+	 * Gets the message serialized as a JSON string.
+	 * The message is serialized only once until the JSON is handed out by {@link #getJson()} or {@link #invalidatePayload()} is called.
+	 * 
+	 * @return
+	 */
+	public synchronized String getPayload() {
+		if (this.payload == null) {
+			this.payload = this.getJson().toString();
+		}
+		return this.payload;
+	}
+	/**
+	 * Converts Bundle to JSONObject.
+	 * 
+	 * @param bundle
+	 * @return
+	 */
+	protected JSONObject toJson(Bundle bundle) {
+		return PushPayload.toJson(bundle == this.bundle ? this : new PushMessage(bundle));
+	}
+	@Override
+	public String toString() {
+		return this.getPayload();
+	}
+}
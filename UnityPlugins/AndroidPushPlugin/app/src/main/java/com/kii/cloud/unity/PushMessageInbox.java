@@ -0,0 +1,288 @@
+package com.kii.cloud.unity;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Durable, append-only inbox of the received push messages.
+ * Messages are appended to segment files with a sequence number, so appending a message costs O(payload)
+ * regardless of how many messages are stored.
+ * The inbox is bounded by the number and size of segments, and the messages older than TTL are not returned.
+ * Unity can drain the inbox at startup with {@link #getMessages(long, int)}.
+ * 
+ * Each record consists of the following fields.
+ * <pre>
+ * int  length of the message in bytes
+ * long sequence number
+ * long received time in milliseconds
+ * byte[] the message encoded in UTF-8
+ * </pre>
+ */
+public class PushMessageInbox {
+
+	private static final String DIRECTORY_NAME = "KiiPushUnityPlugin_inbox";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_SIZE = 4 + 8 + 8;
+	private static final int MAX_SEGMENT_BYTES = 64 * 1024;
+	private static final int MAX_SEGMENTS = 8;
+	private static final long DEFAULT_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	private static PushMessageInbox INSTANCE;
+
+	/**
+	 * Get instance of PushMessageInbox.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	public static synchronized PushMessageInbox getInstance(Context context) {
+		if (INSTANCE == null) {
+			INSTANCE = new PushMessageInbox(new File(context.getApplicationContext().getFilesDir(), DIRECTORY_NAME));
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * A message which is stored in the inbox.
+	 */
+	public static class Entry {
+		private final long sequence;
+		private final long receivedAt;
+		private final String message;
+		Entry(long sequence, long receivedAt, String message) {
+			this.sequence = sequence;
+			this.receivedAt = receivedAt;
+			this.message = message;
+		}
+		public long getSequence() {
+			return sequence;
+		}
+		public long getReceivedAt() {
+			return receivedAt;
+		}
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	private final File directory;
+	private long ttlMillis = DEFAULT_TTL_MILLIS;
+	private RandomAccessFile activeSegment;
+	private long nextSequence = 1;
+
+	PushMessageInbox(File directory) {
+		this.directory = directory;
+	}
+	/**
+	 * Sets the time to live of messages. The messages older than this are not returned and eventually deleted.
+	 * 
+	 * @param ttlMillis
+	 */
+	public synchronized void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+	/**
+	 * Appends the message to the inbox and syncs it to the storage.
+	 * 
+	 * @param message
+	 * @param receivedAt
+	 * @return the sequence number of the appended message.
+	 * @throws IOException
+	 */
+	public synchronized long append(String message, long receivedAt) throws IOException {
+		this.open();
+		long sequence = this.write(message, receivedAt);
+		this.activeSegment.getFD().sync();
+		return sequence;
+	}
+	/**
+	 * Appends the messages to the inbox as a group, and syncs the inbox to the storage only once.
+	 * 
+	 * @param messages
+	 * @param receivedAts received time of each message.
+	 * @return the sequence number of the last appended message.
+	 * @throws IOException
+	 */
+	public synchronized long appendAll(List<String> messages, List<Long> receivedAts) throws IOException {
+		this.open();
+		long sequence = this.nextSequence - 1;
+		for (int i = 0; i < messages.size(); i++) {
+			sequence = this.write(messages.get(i), receivedAts.get(i));
+		}
+		this.activeSegment.getFD().sync();
+		return sequence;
+	}
+	private long write(String message, long receivedAt) throws IOException {
+		byte[] bytes = message.getBytes("UTF-8");
+		if (this.activeSegment.length() > 0 && this.activeSegment.length() + HEADER_SIZE + bytes.length > MAX_SEGMENT_BYTES) {
+			this.activeSegment.getFD().sync();
+			this.roll(receivedAt);
+		}
+		long sequence = this.nextSequence;
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+		record.putInt(bytes.length).putLong(sequence).putLong(receivedAt).put(bytes);
+		this.activeSegment.seek(this.activeSegment.length());
+		this.activeSegment.write(record.array());
+		this.nextSequence++;
+		return sequence;
+	}
+	/**
+	 * Gets the messages whose sequence number is greater than afterSequence in order.
+	 * 
+	 * @param afterSequence set 0 to get messages from the oldest one.
+	 * @param max the maximum number of messages to return, must be positive.
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized List<Entry> getMessages(long afterSequence, int max) throws IOException {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max must be positive");
+		}
+		this.open();
+		List<Entry> entries = new ArrayList<Entry>();
+		long expiredBefore = System.currentTimeMillis() - this.ttlMillis;
+		File[] segments = this.listSegments();
+		for (int i = 0; i < segments.length && entries.size() < max; i++) {
+			// Skips the segment if all messages in it are older than afterSequence.
+			if (i + 1 < segments.length && firstSequenceOf(segments[i + 1]) <= afterSequence + 1) {
+				continue;
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segments[i])));
+			try {
+				while (entries.size() < max) {
+					int length;
+					try {
+						length = in.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					long sequence = in.readLong();
+					long receivedAt = in.readLong();
+					if (sequence <= afterSequence || receivedAt < expiredBefore) {
+						skipFully(in, length);
+						continue;
+					}
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					entries.add(new Entry(sequence, receivedAt, new String(bytes, "UTF-8")));
+				}
+			} catch (EOFException e) {
+				Log.w("PushMessageInbox", "#####segment is truncated " + segments[i].getName());
+			} finally {
+				in.close();
+			}
+		}
+		return entries;
+	}
+	/**
+	 * Gets the sequence number of the newest message.
+	 * 
+	 * @return 0 if no message has been appended.
+	 * @throws IOException
+	 */
+	public synchronized long getLastSequence() throws IOException {
+		this.open();
+		return this.nextSequence - 1;
+	}
+	/**
+	 * Opens the newest segment and recovers the next sequence number from it.
+	 * A record which is partially written by a crash is truncated.
+	 */
+	private void open() throws IOException {
+		if (this.activeSegment != null) {
+			return;
+		}
+		if (!this.directory.exists() && !this.directory.mkdirs()) {
+			throw new IOException("cannot create the directory " + this.directory);
+		}
+		File[] segments = this.listSegments();
+		if (segments.length == 0) {
+			this.activeSegment = new RandomAccessFile(this.segmentFile(1), "rw");
+			this.nextSequence = 1;
+			return;
+		}
+		File newest = segments[segments.length - 1];
+		this.activeSegment = new RandomAccessFile(newest, "rw");
+		long nextSequence = firstSequenceOf(newest);
+		long validLength = 0;
+		long fileLength = this.activeSegment.length();
+		while (validLength + HEADER_SIZE <= fileLength) {
+			this.activeSegment.seek(validLength);
+			int length = this.activeSegment.readInt();
+			long sequence = this.activeSegment.readLong();
+			if (length < 0 || validLength + HEADER_SIZE + length > fileLength) {
+				break;
+			}
+			nextSequence = sequence + 1;
+			validLength += HEADER_SIZE + length;
+		}
+		if (validLength < fileLength) {
+			Log.w("PushMessageInbox", "#####truncate the broken record in " + newest.getName());
+			this.activeSegment.setLength(validLength);
+		}
+		this.nextSequence = nextSequence;
+	}
+	/**
+	 * Starts a new segment and deletes the old segments which exceed the limits.
+	 */
+	private void roll(long now) throws IOException {
+		this.activeSegment.close();
+		this.activeSegment = new RandomAccessFile(this.segmentFile(this.nextSequence), "rw");
+		File[] segments = this.listSegments();
+		long expiredBefore = now - this.ttlMillis;
+		// The newest segment is never deleted, it keeps the sequence number.
+		for (int i = 0; i < segments.length - 1; i++) {
+			if (segments.length - i > MAX_SEGMENTS || segments[i].lastModified() < expiredBefore) {
+				if (!segments[i].delete()) {
+					Log.w("PushMessageInbox", "#####cannot delete the segment " + segments[i].getName());
+				}
+			}
+		}
+	}
+	private File[] listSegments() {
+		File[] segments = this.directory.listFiles();
+		if (segments == null) {
+			return new File[0];
+		}
+		List<File> result = new ArrayList<File>();
+		for (File segment : segments) {
+			if (segment.getName().endsWith(SEGMENT_SUFFIX)) {
+				result.add(segment);
+			}
+		}
+		File[] sorted = result.toArray(new File[result.size()]);
+		// File names are zero padded sequence numbers, so lexical order is sequential order.
+		Arrays.sort(sorted);
+		return sorted;
+	}
+	private File segmentFile(long firstSequence) {
+		return new File(this.directory, String.format(Locale.US, "%020d", firstSequence) + SEGMENT_SUFFIX);
+	}
+	private static long firstSequenceOf(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		int remaining = length;
+		while (remaining > 0) {
+			int skipped = in.skipBytes(remaining);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			remaining -= skipped;
+		}
+	}
+}
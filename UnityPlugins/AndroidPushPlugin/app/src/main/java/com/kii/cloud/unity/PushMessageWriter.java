@@ -0,0 +1,150 @@
+package com.kii.cloud.unity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Background writer which persists the received push messages.
+ * The writes which arrive within a short window are coalesced and committed at once,
+ * so a burst of push messages costs one inbox sync and one SharedPreferences commit instead of one per message.
+ * A large last message is stored compressed, see {@link CompressedPayload#toStoredValue(String)}.
+ * Call {@link #flushInBackground()} to commit the pending writes without waiting for the window, e.g. when the service is destroyed,
+ * or {@link #flush()} to commit them synchronously.
+ */
+public class PushMessageWriter {
+
+	private static final long COMMIT_WINDOW_MILLIS = 100;
+	private static final String KEY_LAST_MESSAGE = "LAST_MESSAGE";
+
+	private final SharedPreferences sharedPreference;
+	private final PushMessageInbox inbox;
+	private final Handler handler;
+	private final Runnable commitTask = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Object lock = new Object();
+	private List<String> pendingMessages = new ArrayList<String>();
+	private List<Long> pendingReceivedAts = new ArrayList<Long>();
+	private String pendingLastMessage;
+	private boolean lastMessageChanged = false;
+	private boolean commitScheduled = false;
+
+	PushMessageWriter(SharedPreferences sharedPreference, PushMessageInbox inbox) {
+		this.sharedPreference = sharedPreference;
+		this.inbox = inbox;
+		HandlerThread thread = new HandlerThread("KiiPushMessageWriter");
+		thread.start();
+		this.handler = new Handler(thread.getLooper());
+	}
+	/**
+	 * Enqueues the message to be appended to the inbox and stored as the last message.
+	 * 
+	 * @param message
+	 * @param receivedAt
+	 */
+	public void enqueue(String message, long receivedAt) {
+		synchronized (this.lock) {
+			this.pendingMessages.add(message);
+			this.pendingReceivedAts.add(receivedAt);
+			this.pendingLastMessage = message;
+			this.lastMessageChanged = true;
+			this.scheduleCommit();
+		}
+	}
+	/**
+	 * Enqueues removing the last message.
+	 */
+	public void enqueueRemoveLastMessage() {
+		synchronized (this.lock) {
+			this.pendingLastMessage = null;
+			this.lastMessageChanged = true;
+			this.scheduleCommit();
+		}
+	}
+	/**
+	 * Commits the pending writes on the calling thread.
+	 * Returns after the writes are persisted.
+	 */
+	public void flush() {
+		long start = PushMetrics.getInstance().start();
+		List<String> messages;
+		List<Long> receivedAts;
+		String lastMessage;
+		boolean lastMessageChanged;
+		// Holds the inbox while committing so that the flushes on the different threads don't reorder the messages.
+		synchronized (this.inbox) {
+			synchronized (this.lock) {
+				messages = this.pendingMessages;
+				receivedAts = this.pendingReceivedAts;
+				lastMessage = this.pendingLastMessage;
+				lastMessageChanged = this.lastMessageChanged;
+				this.pendingMessages = new ArrayList<String>();
+				this.pendingReceivedAts = new ArrayList<Long>();
+				this.pendingLastMessage = null;
+				this.lastMessageChanged = false;
+				this.commitScheduled = false;
+				this.handler.removeCallbacks(this.commitTask);
+			}
+			if (!messages.isEmpty()) {
+				try {
+					this.inbox.appendAll(messages, receivedAts);
+				} catch (IOException e) {
+					Log.e("PushMessageWriter", "#####Failed to append the messages to the inbox ex=" + e.getMessage());
+				}
+			}
+			if (lastMessageChanged) {
+				Editor editor = this.sharedPreference.edit();
+				if (lastMessage == null) {
+					editor.remove(KEY_LAST_MESSAGE);
+				} else {
+					editor.putString(KEY_LAST_MESSAGE, CompressedPayload.toStoredValue(lastMessage));
+				}
+				editor.commit();
+			}
+		}
+		if (!messages.isEmpty() || lastMessageChanged) {
+			PushMetrics.getInstance().record(PushMetrics.Stage.PERSIST, start);
+		}
+		if (!messages.isEmpty()) {
+			if (PushLog.isDebugEnabled()) {
+				Log.d("PushMessageWriter", "#####committed messages=" + messages.size());
+			}
+		}
+	}
+	/**
+	 * Commits the pending writes on the thread of the writer without waiting for the window.
+	 * This returns immediately, so it can be called on the main thread.
+	 */
+	public void flushInBackground() {
+		synchronized (this.lock) {
+			this.handler.removeCallbacks(this.commitTask);
+			this.commitScheduled = true;
+			this.handler.post(this.commitTask);
+		}
+	}
+	/**
+	 * Reads the last message which is stored by the writer.
+	 * 
+	 * @param sharedPreference
+	 * @return null if there is no last message.
+	 */
+	static String readLastMessage(SharedPreferences sharedPreference) {
+		return CompressedPayload.fromStoredValue(sharedPreference.getString(KEY_LAST_MESSAGE, null));
+	}
+	private void scheduleCommit() {
+		if (!this.commitScheduled) {
+			this.commitScheduled = true;
+			this.handler.postDelayed(this.commitTask, COMMIT_WINDOW_MILLIS);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.kii.cloud.unity;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+/**
+ * Process-wide metrics of the push pipeline.
+ * The latency of each stage is recorded to a histogram whose buckets are powers of two in microseconds,
+ * and the events are counted by counters.
+ * Recording doesn't allocate nor lock, so the metrics are always enabled.
+ * The stages and the events are also recorded by {@link PushTrace} while it is enabled.
+ */
+public class PushMetrics {
+
+	/**
+	 * Stages of the push pipeline whose latency is measured.
+	 */
+	public enum Stage {
+		/** GCMBroadcastReceiver#onReceive. */
+		RECEIVE,
+		/** From GCMBroadcastReceiver#onReceive to the start of handling by the service. */
+		DEQUEUE,
+		/** Writing and syncing a batch of the messages to the journal of the pending messages. */
+		ENQUEUE,
+		/** From GCMBroadcastReceiver#onReceive to the release of the wake lock. */
+		WAKE_LOCK,
+		/** Classification of the message. */
+		CLASSIFY,
+		/** onHandlePushMessage, which includes the notification. */
+		HANDLE,
+		/** Building and posting the notification. */
+		NOTIFY,
+		/** Writing the messages to the inbox and SharedPreferences. */
+		PERSIST,
+		/** UnitySendMessage. */
+		UNITY_SEND
+	}
+	/**
+	 * Events of the push pipeline which are counted.
+	 */
+	public enum Counter {
+		/** Messages which are received by GCMBroadcastReceiver. */
+		RECEIVED,
+		/** Messages which are dropped as duplicates. */
+		DUPLICATED,
+		/** Messages which are handled by onHandlePushMessage. */
+		HANDLED,
+		/** Messages which are sent to the Unity layer. */
+		PROPAGATED,
+		/** Messages whose handling threw an exception. */
+		FAILED,
+		/** Messages and bucket change sets which are not sent to the Unity layer because nobody subscribes them. */
+		UNSUBSCRIBED,
+		/** Messages whose compressed payload is inflated. */
+		DECOMPRESSED,
+		/** Messages whose compressed payload is broken or too large. */
+		DECOMPRESSION_FAILED,
+		/** Messages which are dropped because a newer message with the same coalescing key is waiting. */
+		COLLAPSED,
+		/** 'Push to App' messages which are aggregated into the change sets of the buckets. */
+		AGGREGATED
+	}
+
+	/**
+	 * Name of the extra which has the time when GCMBroadcastReceiver received the message.
+	 * The value is System.nanoTime().
+	 */
+	static final String EXTRA_RECEIVED_AT = "com.kii.cloud.unity.RECEIVED_AT";
+
+	/**
+	 * Bucket i counts the samples in [2^(i-1), 2^i) microseconds, bucket 0 counts the samples less than 1 microsecond.
+	 * The last bucket counts all the samples longer than that (about 18 minutes).
+	 */
+	private static final int BUCKETS = 32;
+	private static final int STAGES = Stage.values().length;
+	private static final int COUNTERS = Counter.values().length;
+
+	private static final PushMetrics INSTANCE = new PushMetrics();
+
+	/**
+	 * Get instance of PushMetrics.
+	 *
+	 * @return
+	 */
+	public static PushMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	private final AtomicLongArray histograms = new AtomicLongArray(STAGES * BUCKETS);
+	private final AtomicLongArray totalNanos = new AtomicLongArray(STAGES);
+	private final AtomicLongArray maxNanos = new AtomicLongArray(STAGES);
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+	private volatile long startedAt = SystemClock.elapsedRealtime();
+
+	private PushMetrics() {
+	}
+	/**
+	 * Gets the start time of a measurement.
+	 * Pass the returned value to {@link #record(Stage, long)} at the end of the stage.
+	 *
+	 * @return
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+	/**
+	 * Records the latency of the stage which started at startNanos.
+	 *
+	 * @param stage
+	 * @param startNanos the value which is returned by {@link #start()}.
+	 */
+	public void record(Stage stage, long startNanos) {
+		long endNanos = System.nanoTime();
+		this.recordNanos(stage, endNanos - startNanos);
+		PushTrace.getInstance().stage(stage, startNanos, endNanos);
+	}
+	/**
+	 * Records the latency of the stage.
+	 *
+	 * @param stage
+	 * @param nanos
+	 */
+	public void recordNanos(Stage stage, long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int s = stage.ordinal();
+		long micros = nanos / 1000;
+		int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		this.histograms.incrementAndGet(s * BUCKETS + bucket);
+		this.totalNanos.addAndGet(s, nanos);
+		long max;
+		while ((max = this.maxNanos.get(s)) < nanos && !this.maxNanos.compareAndSet(s, max, nanos)) {
+		}
+	}
+	/**
+	 * Increments the counter.
+	 *
+	 * @param counter
+	 */
+	public void increment(Counter counter) {
+		this.counters.incrementAndGet(counter.ordinal());
+		PushTrace.getInstance().counter(counter);
+	}
+	/**
+	 * Gets the value of the counter.
+	 *
+	 * @param counter
+	 * @return
+	 */
+	public long getCount(Counter counter) {
+		return this.counters.get(counter.ordinal());
+	}
+	/**
+	 * Gets the number of the recorded samples of the stage.
+	 *
+	 * @param stage
+	 * @return
+	 */
+	public long getCount(Stage stage) {
+		long count = 0;
+		int offset = stage.ordinal() * BUCKETS;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += this.histograms.get(offset + i);
+		}
+		return count;
+	}
+	/**
+	 * Clears all the metrics.
+	 */
+	public void reset() {
+		for (int i = 0; i < this.histograms.length(); i++) {
+			this.histograms.set(i, 0);
+		}
+		for (int i = 0; i < STAGES; i++) {
+			this.totalNanos.set(i, 0);
+			this.maxNanos.set(i, 0);
+		}
+		for (int i = 0; i < COUNTERS; i++) {
+			this.counters.set(i, 0);
+		}
+		this.startedAt = SystemClock.elapsedRealtime();
+	}
+	/**
+	 * Gets the snapshot of the metrics as JSON.
+	 * Percentiles are the upper bounds of the buckets, so they are accurate within a factor of two.
+	 *
+	 * @return
+	 */
+	public JSONObject toJson() {
+		JSONObject json = new JSONObject();
+		try {
+			json.put("periodMillis", SystemClock.elapsedRealtime() - this.startedAt);
+			JSONObject stages = new JSONObject();
+			for (Stage stage : Stage.values()) {
+				stages.put(stage.name(), this.toJson(stage));
+			}
+			json.put("stages", stages);
+			JSONObject counters = new JSONObject();
+			for (Counter counter : Counter.values()) {
+				counters.put(counter.name(), this.getCount(counter));
+			}
+			json.put("counters", counters);
+		} catch (JSONException ignore) {
+		}
+		return json;
+	}
+	private JSONObject toJson(Stage stage) throws JSONException {
+		int s = stage.ordinal();
+		long[] buckets = new long[BUCKETS];
+		long count = 0;
+		int last = -1;
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = this.histograms.get(s * BUCKETS + i);
+			count += buckets[i];
+			if (buckets[i] > 0) {
+				last = i;
+			}
+		}
+		JSONObject json = new JSONObject();
+		json.put("count", count);
+		json.put("meanMicros", count == 0 ? 0 : this.totalNanos.get(s) / count / 1000);
+		json.put("maxMicros", this.maxNanos.get(s) / 1000);
+		json.put("p50Micros", percentile(buckets, count, 0.5));
+		json.put("p90Micros", percentile(buckets, count, 0.9));
+		json.put("p99Micros", percentile(buckets, count, 0.99));
+		JSONArray histogram = new JSONArray();
+		for (int i = 0; i <= last; i++) {
+			histogram.put(buckets[i]);
+		}
+		json.put("histogram", histogram);
+		return json;
+	}
+	private static long percentile(long[] buckets, long count, double p) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(count * p);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (buckets.length - 1);
+	}
+}
@@ -0,0 +1,162 @@
+package com.kii.cloud.unity;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+/**
+ * In-memory trace recorder of the push pipeline.
+ * The stages and the counted events of {@link PushMetrics} are recorded as binary entries (event id, thread id and timestamps)
+ * in a fixed-size ring buffer, and the buffer is exported on demand as text or Chrome trace JSON (chrome://tracing).
+ * The recorder is disabled by default, and costs only a volatile read per event while disabled.
+ * The buffer is not locked, so an entry which is being overwritten while exporting may be inconsistent.
+ */
+public class PushTrace {
+
+	private static final int CAPACITY = 4096;
+	private static final int KIND_STAGE = 0;
+	private static final int KIND_COUNTER = 1;
+
+	private static final PushTrace INSTANCE = new PushTrace();
+
+	/**
+	 * Get instance of PushTrace.
+	 *
+	 * @return
+	 */
+	public static PushTrace getInstance() {
+		return INSTANCE;
+	}
+
+	private volatile boolean enabled = false;
+	private final AtomicLong cursor = new AtomicLong();
+	private int[] events;
+	private int[] threadIds;
+	private long[] startNanos;
+	private long[] endNanos;
+
+	private PushTrace() {
+	}
+	/**
+	 * Checks if the recorder is enabled.
+	 *
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+	/**
+	 * Enables or disables the recorder.
+	 * The buffer is allocated when the recorder is enabled at the first time.
+	 *
+	 * @param enabled
+	 */
+	public synchronized void setEnabled(boolean enabled) {
+		if (enabled && this.events == null) {
+			this.events = new int[CAPACITY];
+			this.threadIds = new int[CAPACITY];
+			this.startNanos = new long[CAPACITY];
+			this.endNanos = new long[CAPACITY];
+		}
+		this.enabled = enabled;
+	}
+	/**
+	 * Records the stage which started at startNanos and ended at endNanos.
+	 *
+	 * @param stage
+	 * @param startNanos
+	 * @param endNanos
+	 */
+	public void stage(PushMetrics.Stage stage, long startNanos, long endNanos) {
+		if (this.enabled) {
+			this.put(KIND_STAGE, stage.ordinal(), startNanos, endNanos);
+		}
+	}
+	/**
+	 * Records the event which is counted by the counter.
+	 *
+	 * @param counter
+	 */
+	public void counter(PushMetrics.Counter counter) {
+		if (this.enabled) {
+			long nanos = System.nanoTime();
+			this.put(KIND_COUNTER, counter.ordinal(), nanos, nanos);
+		}
+	}
+	/**
+	 * Discards the recorded entries.
+	 */
+	public synchronized void clear() {
+		this.cursor.set(0);
+	}
+	/**
+	 * Exports the recorded entries to the file.
+	 *
+	 * @param file
+	 * @param chromeTrace writes Chrome trace JSON if true, otherwise writes tab separated text.
+	 * @return the number of the exported entries.
+	 * @throws IOException
+	 */
+	public synchronized int export(File file, boolean chromeTrace) throws IOException {
+		if (this.events == null) {
+			return 0;
+		}
+		long end = this.cursor.get();
+		long begin = Math.max(0, end - CAPACITY);
+		int pid = Process.myPid();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			if (chromeTrace) {
+				writer.write("{\"traceEvents\":[");
+			} else {
+				writer.write("# timestampMicros\tthreadId\tevent\tdurationMicros\n");
+			}
+			for (long i = begin; i < end; i++) {
+				int slot = (int)(i % CAPACITY);
+				int event = this.events[slot];
+				String name = getName(event);
+				long start = this.startNanos[slot] / 1000;
+				long duration = (this.endNanos[slot] - this.startNanos[slot]) / 1000;
+				if (chromeTrace) {
+					if (i > begin) {
+						writer.write(',');
+					}
+					writer.write("{\"name\":\"" + name + "\",\"pid\":" + pid + ",\"tid\":" + this.threadIds[slot] + ",\"ts\":" + start);
+					if ((event >>> 16) == KIND_STAGE) {
+						writer.write(",\"cat\":\"stage\",\"ph\":\"X\",\"dur\":" + duration + "}");
+					} else {
+						writer.write(",\"cat\":\"counter\",\"ph\":\"i\",\"s\":\"t\"}");
+					}
+				} else {
+					writer.write(start + "\t" + this.threadIds[slot] + "\t" + name + "\t" + duration + "\n");
+				}
+			}
+			if (chromeTrace) {
+				writer.write("]}");
+			}
+		} finally {
+			writer.close();
+		}
+		return (int)(end - begin);
+	}
+	private void put(int kind, int id, long startNanos, long endNanos) {
+		int slot = (int)(this.cursor.getAndIncrement() % CAPACITY);
+		this.events[slot] = (kind << 16) | id;
+		this.threadIds[slot] = Process.myTid();
+		this.startNanos[slot] = startNanos;
+		this.endNanos[slot] = endNanos;
+	}
+	private static String getName(int event) {
+		int id = event & 0xFFFF;
+		if ((event >>> 16) == KIND_STAGE) {
+			return PushMetrics.Stage.values()[id].name();
+		}
+		return PushMetrics.Counter.values()[id].name();
+	}
+}
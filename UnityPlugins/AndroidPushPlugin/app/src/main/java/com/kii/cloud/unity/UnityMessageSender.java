@@ -0,0 +1,16 @@
+package com.kii.cloud.unity;
+
+/**
+ * Sends messages to the GameObjects of Unity.
+ * The default implementation calls UnityPlayer.UnitySendMessage.
+ * You can replace it by {@link KiiPushUnityPlugin#setUnityMessageSender(UnityMessageSender)},
+ * e.g. to run the plugin without Unity in tests.
+ */
+public interface UnityMessageSender {
+	/**
+	 * @param gameObjectName
+	 * @param methodName
+	 * @param message
+	 */
+	void sendMessage(String gameObjectName, String methodName, String message);
+}
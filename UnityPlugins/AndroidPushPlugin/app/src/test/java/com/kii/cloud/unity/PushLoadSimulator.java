@@ -0,0 +1,477 @@
+package com.kii.cloud.unity;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.robolectric.Robolectric;
+import org.robolectric.Shadows;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNotificationManager;
+import org.robolectric.util.ServiceController;
+
+import android.app.Application;
+import android.app.IntentService;
+import android.app.NotificationManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Replays recorded push payloads through GCMBroadcastReceiver, the IntentService and KiiPushUnityPlugin
+ * on Robolectric, and measures how the pipeline behaves under load.
+ *
+ * The messages arrive at the configured rate (optionally in bursts) and are started on the service by
+ * {@link ServiceController#startCommand(int, int)}, so they go through the journal of the pending messages
+ * and the queue of the worker thread like on a device. The queue of the worker thread is paused and
+ * the queued intents are handled one at a time on the calling thread.
+ * The messages which are sent to Unity are captured by a UnityMessageSender instead of UnityPlayer,
+ * and the notifications are captured by ShadowNotificationManager.
+ */
+class PushLoadSimulator {
+
+	private static final String ACTION_RECEIVE = "com.google.android.c2dm.intent.RECEIVE";
+	private static final String KEY_MESSAGE_ID = "google.message_id";
+
+	private final Application application;
+	private final Map<String, String> resources = new HashMap<String, String>();
+	private final Map<PushMessageClassifier.Kind, List<JSONObject>> payloads = new EnumMap<PushMessageClassifier.Kind, List<JSONObject>>(PushMessageClassifier.Kind.class);
+	private final int[] mix = {1, 1, 1};
+	private double messagesPerSecond = 100;
+	private int messageCount = 1000;
+	private int burstSize = 1;
+	private double duplicateRatio = 0;
+	private long seed = 1;
+
+	PushLoadSimulator(Application application) {
+		this.application = application;
+	}
+	/**
+	 * Sets a value of kii-push-config.xml to {@link SimulatedGcmIntentService}.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	PushLoadSimulator setResource(String key, String value) {
+		this.resources.put(key, value);
+		return this;
+	}
+	/**
+	 * Adds a recorded payload. The payload is replayed as the extras of the GCM intent.
+	 *
+	 * @param payload
+	 * @return
+	 */
+	PushLoadSimulator addPayload(JSONObject payload) {
+		PushMessageClassifier.Kind kind = PushMessageClassifier.classify(payload);
+		List<JSONObject> list = this.payloads.get(kind);
+		if (list == null) {
+			list = new ArrayList<JSONObject>();
+			this.payloads.put(kind, list);
+		}
+		list.add(payload);
+		return this;
+	}
+	/**
+	 * Sets the ratio of the message types.
+	 *
+	 * @param directPush
+	 * @param pushToUser
+	 * @param pushToApp
+	 * @return
+	 */
+	PushLoadSimulator setMix(int directPush, int pushToUser, int pushToApp) {
+		this.mix[PushMessageClassifier.Kind.DIRECT_PUSH.ordinal()] = directPush;
+		this.mix[PushMessageClassifier.Kind.PUSH_TO_USER.ordinal()] = pushToUser;
+		this.mix[PushMessageClassifier.Kind.PUSH_TO_APP.ordinal()] = pushToApp;
+		return this;
+	}
+	PushLoadSimulator setMessagesPerSecond(double messagesPerSecond) {
+		this.messagesPerSecond = messagesPerSecond;
+		return this;
+	}
+	PushLoadSimulator setMessageCount(int messageCount) {
+		this.messageCount = messageCount;
+		return this;
+	}
+	/**
+	 * Sets the number of the messages which arrive at the same time.
+	 * The average rate is kept.
+	 *
+	 * @param burstSize
+	 * @return
+	 */
+	PushLoadSimulator setBurstSize(int burstSize) {
+		this.burstSize = Math.max(1, burstSize);
+		return this;
+	}
+	/**
+	 * Sets the ratio of the messages which are redelivered with the same google.message_id.
+	 *
+	 * @param duplicateRatio
+	 * @return
+	 */
+	PushLoadSimulator setDuplicateRatio(double duplicateRatio) {
+		this.duplicateRatio = duplicateRatio;
+		return this;
+	}
+	PushLoadSimulator setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+	Report run() throws Exception {
+		final Random random = new Random(this.seed);
+		final String runId = Long.toHexString(System.nanoTime());
+		final Map<String, Long> injectedAt = new HashMap<String, Long>();
+		final Map<String, Long> deliveredAt = new HashMap<String, Long>();
+		final int[] deliveredCount = {0};
+		resetProcessState(this.application);
+		KiiPushUnityPlugin plugin = KiiPushUnityPlugin.getInstance();
+		plugin.setUnityMessageSender(new UnityMessageSender() {
+			public void sendMessage(String gameObjectName, String methodName, String message) {
+				long now = System.nanoTime();
+				try {
+					if (message.startsWith("[")) {
+						JSONArray batch = new JSONArray(message);
+						for (int i = 0; i < batch.length(); i++) {
+							deliveredAt.put(batch.getJSONObject(i).optString(KEY_MESSAGE_ID), now);
+							deliveredCount[0]++;
+						}
+					} else {
+						deliveredAt.put(new JSONObject(message).optString(KEY_MESSAGE_ID), now);
+						deliveredCount[0]++;
+					}
+				} catch (JSONException ignore) {
+				}
+			}
+		});
+		PushMetrics.getInstance().reset();
+		SimulatedGcmIntentService.RESOURCES.clear();
+		SimulatedGcmIntentService.RESOURCES.putAll(this.resources);
+		ShadowApplication shadowApplication = Shadows.shadowOf(this.application);
+		ServiceController<SimulatedGcmIntentService> controller = Robolectric.buildService(SimulatedGcmIntentService.class).attach().create();
+		// IntentService hands the intents to its worker thread. The looper of the worker is paused,
+		// so the intents wait in its queue and they are handled one at a time by the calling thread.
+		ShadowLooper worker = Shadows.shadowOf(getServiceLooper(controller.get()));
+		worker.pause();
+		PendingMessageJournal journal = PendingMessageJournal.getInstance(this.application);
+		// GCM sends an ordered broadcast, but Robolectric 3.0 doesn't give the receiver the pending result of it,
+		// so setResultCode would throw IllegalStateException.
+		GCMBroadcastReceiver receiver = new GCMBroadcastReceiver();
+		setOrderedPendingResult(receiver);
+		this.application.registerReceiver(receiver, new IntentFilter(ACTION_RECEIVE));
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean measureAllocation = threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported();
+		long allocatedBefore = this.getAllocatedBytes(threads, measureAllocation);
+
+		List<String> sentIds = new ArrayList<String>();
+		int injected = 0;
+		int duplicatesInjected = 0;
+		int maxQueueLength = 0;
+		int startId = 0;
+		long intervalNanos = (long)(1000000000L * this.burstSize / this.messagesPerSecond);
+		long start = System.nanoTime();
+		while (injected < this.messageCount || worker.getScheduler().size() > 0) {
+			long now = System.nanoTime();
+			boolean arrived = false;
+			while (injected < this.messageCount && start + (injected / this.burstSize) * intervalNanos <= now) {
+				String messageId;
+				if (!sentIds.isEmpty() && random.nextDouble() < this.duplicateRatio) {
+					messageId = sentIds.get(random.nextInt(sentIds.size()));
+					duplicatesInjected++;
+				} else {
+					messageId = runId + ":" + injected;
+					sentIds.add(messageId);
+					injectedAt.put(messageId, start + (injected / this.burstSize) * intervalNanos);
+				}
+				this.application.sendOrderedBroadcast(this.createIntent(this.nextPayload(random), messageId), null);
+				ShadowLooper.runUiThreadTasks();
+				Intent started = shadowApplication.getNextStartedService();
+				if (started != null) {
+					controller.withIntent(started).startCommand(0, ++startId);
+					arrived = true;
+				}
+				injected++;
+			}
+			if (arrived) {
+				// The window of the journal doesn't elapse on the scheduler of Robolectric,
+				// so the messages which have arrived together are committed at once here.
+				journal.flush();
+				ShadowLooper.runUiThreadTasks();
+			}
+			maxQueueLength = Math.max(maxQueueLength, worker.getScheduler().size());
+			if (worker.getScheduler().size() > 0) {
+				worker.runOneTask();
+				ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+			} else if (injected < this.messageCount) {
+				long wait = start + (injected / this.burstSize) * intervalNanos - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+				}
+			}
+		}
+		// Writes the removals of the handled messages.
+		journal.flush();
+		plugin.flushMessages();
+		ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+		long elapsed = System.nanoTime() - start;
+		long allocated = this.getAllocatedBytes(threads, measureAllocation) - allocatedBefore;
+		this.application.unregisterReceiver(receiver);
+		controller.destroy();
+		plugin.setUnityMessageSender(null);
+		drainDeferredNotifications();
+
+		long[] latencies = new long[deliveredAt.size()];
+		int n = 0;
+		for (Iterator<Map.Entry<String, Long>> i = deliveredAt.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, Long> entry = i.next();
+			Long at = injectedAt.get(entry.getKey());
+			if (at != null) {
+				latencies[n++] = entry.getValue() - at;
+			}
+		}
+		latencies = Arrays.copyOf(latencies, n);
+		Arrays.sort(latencies);
+		PushMetrics metrics = PushMetrics.getInstance();
+		ShadowNotificationManager notificationManager = Shadows.shadowOf((NotificationManager)this.application.getSystemService(Context.NOTIFICATION_SERVICE));
+		Report report = new Report(injected, duplicatesInjected, deliveredCount[0], sentIds.size() - n, elapsed, latencies,
+				measureAllocation ? allocated / Math.max(1, injected) : -1, maxQueueLength, metrics.toJson());
+		report.collapsed = metrics.getCount(PushMetrics.Counter.COLLAPSED);
+		report.journalCommits = metrics.getCount(PushMetrics.Stage.ENQUEUE);
+		report.journalBytes = new File(this.application.getFilesDir(), PendingMessageJournal.FILE_NAME).length();
+		report.notificationUpdates = metrics.getCount(PushMetrics.Stage.NOTIFY);
+		report.coalescedNotifications = NotificationCoordinator.getInstance().getCoalescedCount();
+		report.shownNotifications = notificationManager.size();
+		return report;
+	}
+	private JSONObject nextPayload(Random random) {
+		int total = 0;
+		for (PushMessageClassifier.Kind kind : PushMessageClassifier.Kind.values()) {
+			if (this.payloads.containsKey(kind)) {
+				total += this.mix[kind.ordinal()];
+			}
+		}
+		if (total == 0) {
+			throw new IllegalStateException("No payloads for the mix");
+		}
+		int r = random.nextInt(total);
+		for (PushMessageClassifier.Kind kind : PushMessageClassifier.Kind.values()) {
+			if (!this.payloads.containsKey(kind)) {
+				continue;
+			}
+			r -= this.mix[kind.ordinal()];
+			if (r < 0) {
+				List<JSONObject> list = this.payloads.get(kind);
+				return list.get(random.nextInt(list.size()));
+			}
+		}
+		throw new IllegalStateException();
+	}
+	private Intent createIntent(JSONObject payload, String messageId) {
+		Intent intent = new Intent(ACTION_RECEIVE);
+		for (Iterator<?> i = payload.keys(); i.hasNext();) {
+			String key = (String)i.next();
+			intent.putExtra(key, payload.optString(key));
+		}
+		intent.putExtra(KEY_MESSAGE_ID, messageId);
+		return intent;
+	}
+	/**
+	 * Sets the pending result of an ordered broadcast to the receiver.
+	 * The constructor of PendingResult and setPendingResult are hidden, so they are called by reflection.
+	 *
+	 * @param receiver
+	 * @throws Exception
+	 */
+	private static void setOrderedPendingResult(BroadcastReceiver receiver) throws Exception {
+		Constructor<?> constructor = BroadcastReceiver.PendingResult.class.getDeclaredConstructors()[0];
+		Class<?>[] types = constructor.getParameterTypes();
+		Object[] args = new Object[types.length];
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == int.class) {
+				args[i] = 0;
+			} else if (types[i] == boolean.class) {
+				// ordered and sticky
+				args[i] = true;
+			}
+		}
+		constructor.setAccessible(true);
+		Method setPendingResult = BroadcastReceiver.class.getDeclaredMethod("setPendingResult", BroadcastReceiver.PendingResult.class);
+		setPendingResult.invoke(receiver, constructor.newInstance(args));
+	}
+	/**
+	 * Discards the singletons which the previous simulation left, because every test of Robolectric has its own files directory.
+	 *
+	 * @param application
+	 * @throws Exception
+	 */
+	private static void resetProcessState(Application application) throws Exception {
+		setStaticField(PendingMessageJournal.class, "INSTANCE", null);
+		setStaticField(DuplicateFilter.class, "INSTANCE", null);
+		setStaticField(PushMessageInbox.class, "INSTANCE", null);
+		Constructor<KiiPushUnityPlugin> constructor = KiiPushUnityPlugin.class.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		setStaticField(KiiPushUnityPlugin.class, "INSTANCE", constructor.newInstance());
+		NotificationResources.getInstance().clear();
+		GcmIntentService.invalidateNotificationConfigurations();
+		NotificationCoordinator coordinator = NotificationCoordinator.getInstance();
+		coordinator.clear(application);
+		// The handler is bound to the main looper of the previous test, and the token bucket is not full.
+		setField(coordinator, "handler", new Handler(Looper.getMainLooper()));
+		setField(coordinator, "tokens", getStaticField(NotificationCoordinator.class, "BUCKET_CAPACITY"));
+		setField(coordinator, "lastRefill", 0L);
+		setField(coordinator, "postedCount", 0);
+		setField(coordinator, "coalescedCount", 0);
+	}
+	/**
+	 * Runs the deferred updates of the notifications.
+	 * They wait for the token bucket of NotificationCoordinator, which is refilled in real time.
+	 *
+	 * @throws Exception
+	 */
+	private static void drainDeferredNotifications() throws Exception {
+		long refillInterval = (Long)getStaticField(NotificationCoordinator.class, "REFILL_INTERVAL_MILLIS");
+		ShadowLooper main = Shadows.shadowOf(Looper.getMainLooper());
+		for (int i = 0; i < 10 && main.getScheduler().size() > 0; i++) {
+			Thread.sleep(refillInterval);
+			ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+		}
+	}
+	private static void setStaticField(Class<?> clazz, String name, Object value) throws Exception {
+		Field field = clazz.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(null, value);
+	}
+	private static Object getStaticField(Class<?> clazz, String name) throws Exception {
+		Field field = clazz.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(null);
+	}
+	private static void setField(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+	private static Looper getServiceLooper(IntentService service) throws Exception {
+		Field field = IntentService.class.getDeclaredField("mServiceLooper");
+		field.setAccessible(true);
+		return (Looper)field.get(service);
+	}
+	private long getAllocatedBytes(ThreadMXBean threads, boolean measureAllocation) {
+		if (!measureAllocation) {
+			return 0;
+		}
+		return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Result of a simulation.
+	 */
+	static class Report {
+		final int injected;
+		final int duplicatesInjected;
+		final int delivered;
+		/**
+		 * Unique messages which were not delivered to Unity.
+		 */
+		final int dropped;
+		final long elapsedNanos;
+		final long[] latencies;
+		/**
+		 * Bytes allocated by the pipeline per message on the simulating thread, -1 if the JVM can't measure it.
+		 */
+		final long allocatedBytesPerMessage;
+		final int maxQueueLength;
+		final JSONObject metrics;
+		/**
+		 * Messages which were dropped because a newer message with the same coalescing key was queued.
+		 */
+		long collapsed;
+		/**
+		 * Batches which were written to the journal of the pending messages.
+		 */
+		long journalCommits;
+		/**
+		 * Size of the journal after the run, 0 if all messages were handled.
+		 */
+		long journalBytes;
+		/**
+		 * Updates of the notifications which were posted to NotificationManager.
+		 */
+		long notificationUpdates;
+		/**
+		 * Messages whose updates of the notifications were coalesced into a later update.
+		 */
+		int coalescedNotifications;
+		/**
+		 * Notifications which are shown after the run.
+		 */
+		int shownNotifications;
+
+		Report(int injected, int duplicatesInjected, int delivered, int dropped, long elapsedNanos, long[] latencies,
+				long allocatedBytesPerMessage, int maxQueueLength, JSONObject metrics) {
+			this.injected = injected;
+			this.duplicatesInjected = duplicatesInjected;
+			this.delivered = delivered;
+			this.dropped = dropped;
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = latencies;
+			this.allocatedBytesPerMessage = allocatedBytesPerMessage;
+			this.maxQueueLength = maxQueueLength;
+			this.metrics = metrics;
+		}
+		double getThroughput() {
+			return this.delivered * 1000000000.0 / Math.max(1, this.elapsedNanos);
+		}
+		/**
+		 * @param p 0.0 - 1.0
+		 * @return latency in microseconds from the arrival to the delivery to Unity.
+		 */
+		long getLatencyMicros(double p) {
+			if (this.latencies.length == 0) {
+				return 0;
+			}
+			int index = (int)Math.min(this.latencies.length - 1, Math.ceil(this.latencies.length * p) - 1);
+			return this.latencies[Math.max(0, index)] / 1000;
+		}
+		@Override
+		public String toString() {
+			return "injected=" + this.injected
+				+ " duplicatesInjected=" + this.duplicatesInjected
+				+ " delivered=" + this.delivered
+				+ " dropped=" + this.dropped
+				+ String.format(" throughput=%.1f/s", this.getThroughput())
+				+ " latencyMicros(p50/p90/p99/max)=" + this.getLatencyMicros(0.5) + "/" + this.getLatencyMicros(0.9)
+				+ "/" + this.getLatencyMicros(0.99) + "/" + this.getLatencyMicros(1.0)
+				+ " allocatedBytesPerMessage=" + this.allocatedBytesPerMessage
+				+ " maxQueueLength=" + this.maxQueueLength
+				+ " collapsed=" + this.collapsed
+				+ " journalCommits=" + this.journalCommits
+				+ " journalBytes=" + this.journalBytes
+				+ " notificationUpdates=" + this.notificationUpdates
+				+ " coalescedNotifications=" + this.coalescedNotifications
+				+ " shownNotifications=" + this.shownNotifications
+				+ "\nmetrics=" + this.metrics;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.kii.cloud.unity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.Scanner;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import com.kii.cloud.unity.android.BuildConfig;
+
+/**
+ * Runs the push load simulations on the JVM.
+ * The rate and the number of messages can be changed by the system properties, e.g.
+ * ./gradlew :app:testDebug -Dkii.push.sim.rate=500 -Dkii.push.sim.count=5000 -Dkii.push.sim.burst=100
+ * The reports are written to the standard output.
+ * Every message type is shown in the notification area, so each run ends with a notification per type.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PushLoadSimulatorTest {
+
+	private static final int NOTIFICATION_GROUPS = 3;
+
+	private PushLoadSimulator simulator;
+
+	@Before
+	public void setUp() throws Exception {
+		this.simulator = new PushLoadSimulator(RuntimeEnvironment.application)
+			.setResource("kii_push_direct_showInNotificationArea", "true")
+			.setResource("kii_push_direct_notificationText", "$.message")
+			.setResource("kii_push_user_showInNotificationArea", "true")
+			.setResource("kii_push_user_notificationText", "$.message")
+			.setResource("kii_push_app_showInNotificationArea", "true")
+			.setResource("kii_push_app_notificationText", "$.objectID")
+			.addPayload(loadPayload("direct_push.json"))
+			.addPayload(loadPayload("push_to_user.json"))
+			.addPayload(loadPayload("push_to_app.json"))
+			.setMessagesPerSecond(Double.parseDouble(System.getProperty("kii.push.sim.rate", "200")))
+			.setMessageCount(Integer.getInteger("kii.push.sim.count", 500));
+	}
+	@Test
+	public void steady() throws Exception {
+		PushLoadSimulator.Report report = this.simulator.setMix(1, 1, 1).run();
+		System.out.println("steady: " + report);
+		assertEquals(0, report.dropped);
+		assertPipeline(report);
+	}
+	@Test
+	public void burst() throws Exception {
+		int burstSize = Integer.getInteger("kii.push.sim.burst", 50);
+		PushLoadSimulator.Report report = this.simulator
+			.setMix(1, 4, 1)
+			.setBurstSize(burstSize)
+			.run();
+		System.out.println("burst: " + report);
+		assertEquals(0, report.dropped);
+		assertPipeline(report);
+		// The messages of a burst are committed to the journal together.
+		assertTrue(report.journalCommits <= (report.injected + burstSize - 1) / burstSize);
+	}
+	@Test
+	public void redelivery() throws Exception {
+		PushLoadSimulator.Report report = this.simulator
+			.setMix(2, 1, 1)
+			.setDuplicateRatio(0.1)
+			.run();
+		System.out.println("redelivery: " + report);
+		assertEquals(0, report.dropped);
+		assertEquals(report.duplicatesInjected, PushMetrics.getInstance().getCount(PushMetrics.Counter.DUPLICATED));
+		assertEquals(report.injected - report.duplicatesInjected, report.delivered);
+		assertPipeline(report);
+	}
+	@Test
+	public void coalescing() throws Exception {
+		PushLoadSimulator.Report report = this.simulator
+			.setResource("kii_push_coalescingKey", "$.topic")
+			.setMix(0, 1, 0)
+			.setBurstSize(Integer.getInteger("kii.push.sim.burst", 50))
+			.run();
+		System.out.println("coalescing: " + report);
+		// All messages of push_to_user.json have the same topic, so only the last one of the queued messages is delivered.
+		assertTrue(report.collapsed > 0);
+		assertEquals(report.injected, report.delivered + report.collapsed);
+		assertEquals(report.collapsed, PushMetrics.getInstance().getCount(PushMetrics.Counter.COLLAPSED));
+		assertEquals(0, report.journalBytes);
+		assertEquals(1, report.shownNotifications);
+	}
+	/**
+	 * Asserts that the handled messages left the journal and were shown in the notification area.
+	 *
+	 * @param report
+	 */
+	private static void assertPipeline(PushLoadSimulator.Report report) {
+		assertEquals(0, report.collapsed);
+		assertTrue(report.journalCommits > 0);
+		assertTrue(report.journalCommits <= report.injected);
+		assertEquals(0, report.journalBytes);
+		// Every message is either posted at once or coalesced into a deferred update.
+		assertTrue(report.notificationUpdates > 0);
+		assertTrue(report.notificationUpdates <= report.delivered);
+		assertTrue(report.notificationUpdates + report.coalescedNotifications >= report.delivered);
+		assertEquals(NOTIFICATION_GROUPS, report.shownNotifications);
+	}
+	private static JSONObject loadPayload(String name) throws Exception {
+		InputStream in = PushLoadSimulatorTest.class.getResourceAsStream("/payloads/" + name);
+		try {
+			return new JSONObject(new Scanner(in, "UTF-8").useDelimiter("\\A").next());
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.kii.cloud.unity;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ComponentName;
+import android.content.Context;
+
+/**
+ * GcmIntentService which reads its configuration from {@link #RESOURCES} instead of kii-push-config.xml,
+ * which is not merged into the resources of the plugin under Robolectric.
+ * The application is always in background, so the notifications are shown.
+ */
+public class SimulatedGcmIntentService extends GcmIntentService {
+
+	/**
+	 * The values of kii-push-config.xml, they are read when the service is created.
+	 */
+	static final Map<String, String> RESOURCES = new HashMap<String, String>();
+
+	@Override
+	protected String getResouceValueAsString(String key) {
+		return RESOURCES.get(key);
+	}
+	@Override
+	protected boolean getResouceValueAsBoolean(String key) {
+		return Boolean.parseBoolean(RESOURCES.get(key));
+	}
+	@Override
+	protected int getResouceValueAsInteger(String key) {
+		String value = RESOURCES.get(key);
+		try {
+			return value == null ? 0 : Integer.parseInt(value);
+		} catch (NumberFormatException ignore) {
+			return 0;
+		}
+	}
+	@Override
+	protected String getAppName(Context context) {
+		// The manifest of Robolectric has no label and no launcher activity.
+		return "PushLoadSimulator";
+	}
+	@Override
+	protected ComponentName getLaunchComponent(Context context) {
+		return new ComponentName(context.getPackageName(), "com.unity3d.player.UnityPlayerActivity");
+	}
+	@Override
+	protected int getSmallIcon(Context context) {
+		return android.R.drawable.stat_notify_chat;
+	}
+	@Override
+	protected int getLargeIcon(Context context) {
+		return 0;
+	}
+	@Override
+	protected boolean isForeground() {
+		return false;
+	}
+}
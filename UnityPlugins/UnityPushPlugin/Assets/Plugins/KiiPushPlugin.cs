@@ -1,7 +1,9 @@
 ﻿using UnityEngine;
 using KiiCorp.Cloud.Storage;
+using JsonOrg;
 using System;
 using System.Collections;
+using System.Collections.Generic;
 
 namespace KiiCorp.Cloud.Unity
 {
@@ -93,6 +95,147 @@ namespace KiiCorp.Cloud.Unity
 		/// You need to download unity plug-in.
 		/// </remarks>
 		public delegate void KiiUnregisterPushCallback(Exception e);
+		/// <summary>
+		/// Represents the method that will handle the event when the changes of a bucket are delivered.
+		/// </summary>
+		/// <param name="changes">The aggregated changes of the bucket.</param>
+		/// <remarks>
+		/// This delegate is not included in KiiCloudStorageSDK.dll
+		/// You need to download unity plug-in.
+		/// </remarks>
+		public delegate void KiiBucketChangedCallback(BucketChangeSet changes);
+		/// <summary>
+		/// Changes of a bucket which are aggregated from PUSH_TO_APP messages.
+		/// </summary>
+		/// <remarks></remarks>
+		public class BucketChangeSet
+		{
+			private JsonObject json;
+
+			internal BucketChangeSet(string payload)
+			{
+				this.json = new JsonObject(payload);
+			}
+			/// <summary>
+			/// Parses the change set which is delivered to the method of Subscribe.
+			/// </summary>
+			/// <returns>The change set.</returns>
+			/// <param name="payload">The payload which is passed to the subscribed method.</param>
+			public static BucketChangeSet Parse(string payload)
+			{
+				return new BucketChangeSet(payload);
+			}
+			/// <summary>
+			/// Gets the bucket which is changed.
+			/// </summary>
+			/// <value>The bucket, or null if the scope of the bucket is unknown.</value>
+			public KiiBucket KiiBucket
+			{
+				get
+				{
+					PushToAppMessage message = ReceivedMessage.Parse(this.json.ToString()) as PushToAppMessage;
+					return message == null ? null : message.KiiBucket;
+				}
+			}
+			/// <summary>
+			/// Gets the ID of the bucket.
+			/// </summary>
+			public string BucketID
+			{
+				get { return this.json.OptString("bucketID"); }
+			}
+			/// <summary>
+			/// Gets the type of the bucket.
+			/// </summary>
+			public string BucketType
+			{
+				get { return this.json.OptString("bucketType"); }
+			}
+			/// <summary>
+			/// Gets the distinct IDs of the changed objects in the received order.
+			/// </summary>
+			public IList<string> ObjectIDs
+			{
+				get
+				{
+					List<string> objectIDs = new List<string>();
+					JsonArray array = this.json.OptJsonArray("objectIDs");
+					for (int i = 0; array != null && i < array.Length(); i++)
+					{
+						objectIDs.Add(array.GetString(i));
+					}
+					return objectIDs;
+				}
+			}
+			/// <summary>
+			/// Gets whether some object IDs are omitted because the change set has too many objects.
+			/// Resync the whole bucket in this case.
+			/// </summary>
+			public bool Truncated
+			{
+				get { return this.json.OptBoolean("truncated"); }
+			}
+			/// <summary>
+			/// Gets the max modifiedAt of the changed objects.
+			/// </summary>
+			public long MaxModifiedAt
+			{
+				get { return this.json.OptLong("maxModifiedAt"); }
+			}
+			/// <summary>
+			/// Gets the number of the aggregated messages.
+			/// </summary>
+			public int Count
+			{
+				get { return this.json.OptInt("count"); }
+			}
+			/// <summary>
+			/// Gets the number of the messages per type of the event, e.g. DATA_OBJECT_CREATED.
+			/// </summary>
+			public IDictionary<string, int> TypeCounts
+			{
+				get
+				{
+					Dictionary<string, int> typeCounts = new Dictionary<string, int>();
+					JsonObject counts = this.json.OptJsonObject("typeCounts");
+					if (counts != null)
+					{
+						var keys = counts.Keys();
+						while (keys.MoveNext())
+						{
+							typeCounts[keys.Current] = counts.OptInt(keys.Current);
+						}
+					}
+					return typeCounts;
+				}
+			}
+			/// <summary>
+			/// Gets the change set as JSON.
+			/// </summary>
+			public override string ToString()
+			{
+				return this.json.ToString();
+			}
+		}
+		/// <summary>
+		/// Fields of the push message which are matched with the pattern of Subscribe.
+		/// </summary>
+		/// <remarks></remarks>
+		public enum SubscriptionField
+		{
+			/// <summary>
+			/// 'topic' of PUSH_TO_USER messages.
+			/// </summary>
+			TOPIC,
+			/// <summary>
+			/// 'bucketID' of PUSH_TO_APP messages.
+			/// </summary>
+			BUCKET,
+			/// <summary>
+			/// Type of the message, which is PUSH_TO_APP, PUSH_TO_USER or DIRECT_PUSH.
+			/// </summary>
+			MESSAGE_TYPE
+		}
 		
 		/// <summary>
 		/// This setting is needed only on Android.
@@ -110,6 +253,14 @@ namespace KiiCorp.Cloud.Unity
 		/// <remarks></remarks>
 		public event KiiPushMessageReceivedCallback OnPushMessageReceived;
 
+		/// <summary>
+		/// Occurs when the aggregated changes of a bucket are delivered.
+		/// This event occurs only while the aggregation is enabled by EnableBucketChangeAggregation.
+		/// This event called on UI thread.
+		/// </summary>
+		/// <remarks></remarks>
+		public event KiiBucketChangedCallback OnBucketChanged;
+
 		/// <summary>
 		/// Initializes a new instance of the <see cref="KiiCorp.Cloud.Storage.KiiPushPlugin"/> class.
 		/// </summary>
@@ -140,6 +291,13 @@ namespace KiiCorp.Cloud.Unity
 			this.callback = callback;
 			registerForRemoteNotifications();
 		}
+		/// <summary>
+		/// Cancels the registration which is in progress.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void CancelRegisterPush()
+		{
+		}
 		void OnDidRegisterForRemoteNotificationsWithDeviceToken(string deviceToken)
 		{
 			Debug.Log ("#####KiiPush Device Token :" + deviceToken);
@@ -200,6 +358,15 @@ namespace KiiCorp.Cloud.Unity
 				callback (null, e);
 			}
 		}
+		/// <summary>
+		/// Cancels the registration which is in progress.
+		/// The callback of RegisterPush is not called for the cancelled registration.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void CancelRegisterPush()
+		{
+			kiiPush.Call ("cancelRegistration");
+		}
 		void OnRegisterPushSucceeded(string registrationId)
 		{
 			if (this.registerCallback != null)
@@ -258,6 +425,13 @@ namespace KiiCorp.Cloud.Unity
 		{
 		}
 		/// <summary>
+		/// Cancels the registration which is in progress.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void CancelRegisterPush()
+		{
+		}
+		/// <summary>
 		/// Unregisters the push.
 		/// </summary>
 		/// <param name="callback">Callback delegate. If exception is null, execution is succeeded.</param>
@@ -283,7 +457,300 @@ namespace KiiCorp.Cloud.Unity
 			return null;
 		}
 		#endif
+
+		#if UNITY_ANDROID
+		/// <summary>
+		/// Enables batched delivery of push messages.
+		/// The messages received within the window (or until maxCount messages are received) are delivered to the Unity layer at once,
+		/// and then OnPushMessageReceived is called for each message.
+		/// </summary>
+		/// <param name="windowMillis">Time window to collect messages in milliseconds.</param>
+		/// <param name="maxCount">The maximum number of messages in a batch.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void EnableBatchDelivery(long windowMillis, int maxCount)
+		{
+			kiiPush.Call("enableBatchDelivery", windowMillis, maxCount);
+		}
+		/// <summary>
+		/// Disables batched delivery of push messages.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void DisableBatchDelivery()
+		{
+			kiiPush.Call("disableBatchDelivery");
+		}
+		#else
+		/// <summary>
+		/// Enables batched delivery of push messages.
+		/// </summary>
+		/// <param name="windowMillis">Time window to collect messages in milliseconds.</param>
+		/// <param name="maxCount">The maximum number of messages in a batch.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void EnableBatchDelivery(long windowMillis, int maxCount)
+		{
+		}
+		/// <summary>
+		/// Disables batched delivery of push messages.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void DisableBatchDelivery()
+		{
+		}
+		#endif
+
+		#if UNITY_ANDROID
+		/// <summary>
+		/// Enables the aggregation of PUSH_TO_APP messages.
+		/// The messages received within the window are aggregated into a change set per bucket,
+		/// and then OnBucketChanged is called once for each bucket instead of OnPushMessageReceived for each message.
+		/// If there are subscriptions, each change set is delivered only to the methods which subscribe its BUCKET or PUSH_TO_APP MESSAGE_TYPE,
+		/// and can be parsed by BucketChangeSet.Parse.
+		/// </summary>
+		/// <param name="windowMillis">Time window to aggregate messages in milliseconds.</param>
+		/// <param name="maxObjectIDs">The maximum number of object IDs in a change set, the others are counted but omitted.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void EnableBucketChangeAggregation(long windowMillis, int maxObjectIDs)
+		{
+			kiiPush.Call("enableBucketChangeAggregation", windowMillis, maxObjectIDs);
+		}
+		/// <summary>
+		/// Disables the aggregation of PUSH_TO_APP messages.
+		/// The changes which are being aggregated are delivered immediately.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void DisableBucketChangeAggregation()
+		{
+			kiiPush.Call("disableBucketChangeAggregation");
+		}
+		/// <summary>
+		/// Cancels the notifications which are shown by the native plugin, and starts the groups of the notifications over.
+		/// Call this when the application has shown the messages to the user.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void ClearNotifications()
+		{
+			kiiPush.Call("clearNotifications");
+		}
+		#else
+		/// <summary>
+		/// Enables the aggregation of PUSH_TO_APP messages.
+		/// </summary>
+		/// <param name="windowMillis">Time window to aggregate messages in milliseconds.</param>
+		/// <param name="maxObjectIDs">The maximum number of object IDs in a change set.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void EnableBucketChangeAggregation(long windowMillis, int maxObjectIDs)
+		{
+		}
+		/// <summary>
+		/// Disables the aggregation of PUSH_TO_APP messages.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void DisableBucketChangeAggregation()
+		{
+		}
+		/// <summary>
+		/// Cancels the notifications which are shown by the native plugin.
+		/// </summary>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void ClearNotifications()
+		{
+		}
+		#endif
+
+		#if UNITY_ANDROID
+		/// <summary>
+		/// Gets the push messages which are stored in the inbox of the native plugin.
+		/// The messages are not deleted, so you can drain the inbox at startup by passing the last sequence number you've got.
+		/// </summary>
+		/// <returns>JSON array like [{"seq":1, "receivedAt":1234567890123, "message":{...}}, ...].</returns>
+		/// <param name="afterSequence">Returns the messages whose sequence number is greater than this. Set 0 to get from the oldest message.</param>
+		/// <param name="max">The maximum number of messages, must be positive.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public string GetMessages(long afterSequence, int max)
+		{
+			return kiiPush.Call<string>("getMessages", afterSequence, max);
+		}
+		#else
+		/// <summary>
+		/// Gets the push messages which are stored in the inbox of the native plugin.
+		/// </summary>
+		/// <returns>Always returns an empty JSON array on this platform.</returns>
+		/// <param name="afterSequence">Returns the messages whose sequence number is greater than this.</param>
+		/// <param name="max">The maximum number of messages, must be positive.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public string GetMessages(long afterSequence, int max)
+		{
+			return "[]";
+		}
+		#endif
+
+		#if UNITY_ANDROID
+		/// <summary>
+		/// Gets the metrics of the push pipeline in the native plugin.
+		/// The result includes the latency histograms of each stage (receive, dequeue, enqueue to the journal, wake lock, classify, handle, notify, persist and UnitySendMessage) and the counters.
+		/// </summary>
+		/// <returns>JSON object like {"periodMillis":..., "stages":{"HANDLE":{"count":..., "p50Micros":..., ...}, ...}, "counters":{...}}.</returns>
+		/// <param name="reset">If true, the metrics are cleared after taking the snapshot.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public string GetMetrics(bool reset)
+		{
+			return kiiPush.Call<string>("getMetrics", reset);
+		}
+		#else
+		/// <summary>
+		/// Gets the metrics of the push pipeline in the native plugin.
+		/// </summary>
+		/// <returns>Always returns an empty JSON object on this platform.</returns>
+		/// <param name="reset">If true, the metrics are cleared after taking the snapshot.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public string GetMetrics(bool reset)
+		{
+			return "{}";
+		}
+		#endif
+
+		#if UNITY_ANDROID
+		/// <summary>
+		/// Enables or disables the debug logs of the native plugin.
+		/// The debug logs include the payloads of push messages, so they are disabled by default.
+		/// </summary>
+		/// <param name="enabled">If true, the debug logs are written to logcat.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void SetDebugLogEnabled(bool enabled)
+		{
+			kiiPush.Call("setDebugLogEnabled", enabled);
+		}
+		/// <summary>
+		/// Enables or disables the trace recorder of the push pipeline in the native plugin.
+		/// </summary>
+		/// <param name="enabled">If true, the stages of the push pipeline are recorded in memory.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void SetTraceEnabled(bool enabled)
+		{
+			kiiPush.Call("setTraceEnabled", enabled);
+		}
+		/// <summary>
+		/// Exports the recorded trace of the push pipeline to the file.
+		/// </summary>
+		/// <returns>The number of the exported events, or -1 if failed to write the file.</returns>
+		/// <param name="path">Path of the file, e.g. Application.persistentDataPath + "/push-trace.json".</param>
+		/// <param name="chromeTrace">If true, writes Chrome trace JSON which can be loaded by chrome://tracing, otherwise writes tab separated text.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public int ExportTrace(string path, bool chromeTrace)
+		{
+			return kiiPush.Call<int>("exportTrace", path, chromeTrace);
+		}
+		#else
+		/// <summary>
+		/// Enables or disables the debug logs of the native plugin.
+		/// </summary>
+		/// <param name="enabled">If true, the debug logs are written to logcat.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void SetDebugLogEnabled(bool enabled)
+		{
+		}
+		/// <summary>
+		/// Enables or disables the trace recorder of the push pipeline in the native plugin.
+		/// </summary>
+		/// <param name="enabled">If true, the stages of the push pipeline are recorded in memory.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public void SetTraceEnabled(bool enabled)
+		{
+		}
+		/// <summary>
+		/// Exports the recorded trace of the push pipeline to the file.
+		/// </summary>
+		/// <returns>Always returns 0 on this platform.</returns>
+		/// <param name="path">Path of the file.</param>
+		/// <param name="chromeTrace">If true, writes Chrome trace JSON, otherwise writes tab separated text.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public int ExportTrace(string path, bool chromeTrace)
+		{
+			return 0;
+		}
+		#endif
 		
+		#if UNITY_ANDROID
+		/// <summary>
+		/// Subscribes the push messages whose field matches the pattern.
+		/// The method of the GameObject is called with the payload of the message, which can be parsed by ReceivedMessage.Parse.
+		/// Once a subscription is added, the messages are delivered only to the subscribers instead of OnPushMessageReceived,
+		/// and the messages which nobody subscribes are not delivered to the Unity layer.
+		/// While EnableBucketChangeAggregation is enabled, PUSH_TO_APP messages are delivered as change sets, which can be parsed by BucketChangeSet.Parse.
+		/// </summary>
+		/// <returns>false if the method already subscribes the pattern.</returns>
+		/// <param name="field">Field of the message which is matched with the pattern.</param>
+		/// <param name="pattern">Value of the field, or prefix of the value followed by '*'. e.g. "score_*"</param>
+		/// <param name="gameObjectName">Name of the GameObject which receives the messages.</param>
+		/// <param name="methodName">Name of the method which receives the messages.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public bool Subscribe(SubscriptionField field, string pattern, string gameObjectName, string methodName)
+		{
+			return kiiPush.Call<bool>("subscribe", field.ToString(), pattern, gameObjectName, methodName);
+		}
+		/// <summary>
+		/// Unsubscribes the push messages.
+		/// </summary>
+		/// <returns>false if the method doesn't subscribe the pattern.</returns>
+		/// <param name="field">Field of the message which is passed to Subscribe.</param>
+		/// <param name="pattern">Pattern which is passed to Subscribe.</param>
+		/// <param name="gameObjectName">Name of the GameObject which is passed to Subscribe.</param>
+		/// <param name="methodName">Name of the method which is passed to Subscribe.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public bool Unsubscribe(SubscriptionField field, string pattern, string gameObjectName, string methodName)
+		{
+			return kiiPush.Call<bool>("unsubscribe", field.ToString(), pattern, gameObjectName, methodName);
+		}
+		/// <summary>
+		/// Unsubscribes all the push messages which the GameObject subscribes.
+		/// Call this when the GameObject is destroyed.
+		/// </summary>
+		/// <returns>The number of the removed subscriptions.</returns>
+		/// <param name="gameObjectName">Name of the GameObject.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public int UnsubscribeAll(string gameObjectName)
+		{
+			return kiiPush.Call<int>("unsubscribeAll", gameObjectName);
+		}
+		#else
+		/// <summary>
+		/// Subscribes the push messages whose field matches the pattern.
+		/// </summary>
+		/// <returns>Always returns false on this platform.</returns>
+		/// <param name="field">Field of the message which is matched with the pattern.</param>
+		/// <param name="pattern">Value of the field, or prefix of the value followed by '*'.</param>
+		/// <param name="gameObjectName">Name of the GameObject which receives the messages.</param>
+		/// <param name="methodName">Name of the method which receives the messages.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public bool Subscribe(SubscriptionField field, string pattern, string gameObjectName, string methodName)
+		{
+			return false;
+		}
+		/// <summary>
+		/// Unsubscribes the push messages.
+		/// </summary>
+		/// <returns>Always returns false on this platform.</returns>
+		/// <param name="field">Field of the message which is passed to Subscribe.</param>
+		/// <param name="pattern">Pattern which is passed to Subscribe.</param>
+		/// <param name="gameObjectName">Name of the GameObject which is passed to Subscribe.</param>
+		/// <param name="methodName">Name of the method which is passed to Subscribe.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public bool Unsubscribe(SubscriptionField field, string pattern, string gameObjectName, string methodName)
+		{
+			return false;
+		}
+		/// <summary>
+		/// Unsubscribes all the push messages which the GameObject subscribes.
+		/// </summary>
+		/// <returns>Always returns 0 on this platform.</returns>
+		/// <param name="gameObjectName">Name of the GameObject.</param>
+		/// <remarks>This method is supported only on Android.</remarks>
+		public int UnsubscribeAll(string gameObjectName)
+		{
+			return 0;
+		}
+		#endif
+
 		/// <summary>
 		/// This method is called by the unity native plugin when received push message.
 		/// Don't call this method from unity application.
@@ -311,5 +778,65 @@ namespace KiiCorp.Cloud.Unity
 				Debug.Log("#####ERROR:" + e.Message);
 			}
 		}
+		/// <summary>
+		/// This method is called by the unity native plugin when received push messages in batched delivery mode.
+		/// Don't call this method from unity application.
+		/// </summary>
+		/// <param name="payload">JSON array of payloads.</param>
+		/// <remarks></remarks>
+		public void OnPushNotificationsBatchReceived(string payload)
+		{
+			try
+			{
+				Debug.Log ("#####OnPushNotificationsBatchReceived");
+				if (this.OnPushMessageReceived == null)
+				{
+					Debug.Log("#####WARN:Event OnPushMessageReceived is not bound");
+					return;
+				}
+				JsonArray messages = new JsonArray (payload);
+				for (int i = 0; i < messages.Length (); i++)
+				{
+					try
+					{
+						ReceivedMessage message = ReceivedMessage.Parse (messages.GetJsonObject (i).ToString ());
+						this.OnPushMessageReceived (message);
+					}
+					catch (Exception e)
+					{
+						Debug.Log("#####ERROR:" + e.Message);
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				Debug.Log("#####ERROR:" + e.Message);
+			}
+		}
+		/// <summary>
+		/// This method is called by the unity native plugin when the aggregated changes of a bucket are delivered.
+		/// Don't call this method from unity application.
+		/// </summary>
+		/// <param name="payload">JSON of the change set.</param>
+		/// <remarks></remarks>
+		public void OnPushBucketChanged(string payload)
+		{
+			try
+			{
+				Debug.Log ("#####OnPushBucketChanged");
+				if (this.OnBucketChanged != null)
+				{
+					this.OnBucketChanged (new BucketChangeSet (payload));
+				}
+				else
+				{
+					Debug.Log("#####WARN:Event OnBucketChanged is not bound");
+				}
+			}
+			catch (Exception e)
+			{
+				Debug.Log("#####ERROR:" + e.Message);
+			}
+		}
 	}
 }
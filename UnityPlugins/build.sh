@@ -16,6 +16,8 @@ cd ../
 # Place AndroidPushPlugin to UnityPushPlugin
 cp AndroidPushPlugin/app/build/outputs/jar/release/classes.jar \
 UnityPushPlugin/Assets/Plugins/Android/androidpushplugin.jar
+cp AndroidPushPlugin/app/build/outputs/jar/release/kii-android-core.jar \
+UnityPushPlugin/Assets/Plugins/Android/kii-android-core.jar
 
 sed -i '' -e 's/com.kii.unity.sample.push/com.example.your.application.package.name/g' ./UnityPushPlugin/Assets/Plugins/Android/AndroidManifest.xml
 